@@ -6,7 +6,7 @@ package com.cyngn.vertx.opentsdb;
  * @author truelove@cyngn.com (Jeremy Truelove) 4/25/15
  */
 public enum EventBusMessage {
-    WRITE_FAILURE, INVALID_DATA
+    WRITE_FAILURE, INVALID_DATA, METRICS_DROPPED, ROLLUP_FAILURE
 }
 
 
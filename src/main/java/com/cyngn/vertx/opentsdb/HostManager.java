@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.BatchSizer;
+import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import com.cyngn.vertx.opentsdb.client.OpenTsDbClient;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one {@link OpenTsDbClient} per configured host, the host list can be swapped out at runtime and host names are
+ *  periodically re-resolved so a TSD moving to a new address is picked up without a redeploy.
+ *
+ * Clients for removed hosts are taken out of rotation straight away so new data goes to the remaining hosts, their
+ *  sockets are closed once any writes already handed to them complete.
+ *
+ * Every client is bound to its own event loop context so flushes to different TSDs run in parallel and socket work
+ *  stays off the context consuming metrics.
+ */
+public class HostManager {
+    private static final Logger logger = LoggerFactory.getLogger(HostManager.class);
+    public static final long DRAIN_TIMEOUT_MILLI = 5000;
+
+    private final Vertx vertx;
+    private final MetricBlacklist blacklist;
+    private final Supplier<BatchSizer> batchSizers;
+    private final List<MetricsSender> senders;
+    private final Map<String, HostEntry> hostEntries;
+    private JsonArray hosts;
+
+    private static class HostEntry {
+        private final String host;
+        private final int port;
+        private String address;
+        private OpenTsDbClient client;
+
+        private HostEntry(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    public HostManager(Vertx vertx, MetricBlacklist blacklist) {
+        this(vertx, blacklist, () -> null);
+    }
+
+    /**
+     * @param vertx the vertx instance
+     * @param blacklist where metrics the TSDs reject are recorded
+     * @param batchSizers creates the write size tuner for each new client, or supplies null for fixed size writes
+     */
+    public HostManager(Vertx vertx, MetricBlacklist blacklist, Supplier<BatchSizer> batchSizers) {
+        this.vertx = vertx;
+        this.blacklist = blacklist;
+        this.batchSizers = batchSizers;
+        senders = new CopyOnWriteArrayList<>();
+        hostEntries = new HashMap<>();
+        hosts = new JsonArray();
+    }
+
+    /**
+     * @return the live list of senders, safe to iterate while hosts are being updated
+     */
+    public List<MetricsSender> getSenders() {
+        return senders;
+    }
+
+    public JsonArray getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Replace the set of hosts, resolving them off the event loop and then adding and removing clients to match.
+     *
+     * @param newHosts the list of hosts ie [{"host" : "localhost", "port" : 4242}]
+     * @throws IllegalArgumentException if any of the hosts are malformed
+     */
+    public void update(JsonArray newHosts) {
+        Map<String, HostEntry> desired = new LinkedHashMap<>();
+        for (int i = 0; i < newHosts.size(); i++) {
+            Object value = newHosts.getValue(i);
+            if (!(value instanceof JsonObject)) { throw new IllegalArgumentException("Invalid host: " + value); }
+
+            JsonObject jsonHost = (JsonObject) value;
+            String host;
+            Integer port;
+            try {
+                host = jsonHost.getString("host");
+                port = jsonHost.getInteger("port");
+            } catch (ClassCastException ex) {
+                host = null;
+                port = null;
+            }
+
+            if (host == null || port == null) {
+                throw new IllegalArgumentException("Invalid host: " + jsonHost.encode());
+            }
+            desired.put(host + ":" + port, new HostEntry(host, port));
+        }
+
+        hosts = newHosts.copy();
+        vertx.<Map<String, String>>executeBlocking(future -> future.complete(resolve(desired.values())), result -> {
+            if (result.succeeded()) { apply(desired, result.result()); }
+            else { logger.error("Failed resolving hosts", result.cause()); }
+        });
+    }
+
+    /**
+     * Re-resolve the current hosts, replacing the clients of any whose address has changed.
+     */
+    public void refresh() {
+        update(hosts);
+    }
+
+    private Map<String, String> resolve(Iterable<HostEntry> entries) {
+        Map<String, String> addresses = new HashMap<>();
+        for (HostEntry entry : entries) {
+            try {
+                addresses.put(entry.host, InetAddress.getByName(entry.host).getHostAddress());
+            } catch (UnknownHostException ex) {
+                // leave it to the client to keep retrying the name
+                logger.warn(String.format("Failed to resolve host: %s", entry.host));
+                addresses.put(entry.host, entry.host);
+            }
+        }
+        return addresses;
+    }
+
+    private void apply(Map<String, HostEntry> desired, Map<String, String> addresses) {
+        Iterator<Map.Entry<String, HostEntry>> existing = hostEntries.entrySet().iterator();
+        while (existing.hasNext()) {
+            Map.Entry<String, HostEntry> entry = existing.next();
+            if (!desired.containsKey(entry.getKey())) {
+                logger.info(String.format("Removing host: %s", entry.getKey()));
+                remove(entry.getValue().client);
+                existing.remove();
+            }
+        }
+
+        for (Map.Entry<String, HostEntry> entry : desired.entrySet()) {
+            HostEntry wanted = entry.getValue();
+            String address = addresses.get(wanted.host);
+            HostEntry current = hostEntries.get(entry.getKey());
+
+            if (current == null) {
+                logger.info(String.format("Adding host: %s at %s", entry.getKey(), address));
+                wanted.address = address;
+                wanted.client = createClient(address, wanted.port);
+                hostEntries.put(entry.getKey(), wanted);
+            } else if (!current.address.equals(address)) {
+                logger.info(String.format("Host: %s moved from %s to %s", entry.getKey(), current.address, address));
+                OpenTsDbClient previous = current.client;
+                current.address = address;
+                current.client = createClient(address, wanted.port);
+                remove(previous);
+            }
+        }
+    }
+
+    private OpenTsDbClient createClient(String address, int port) {
+        OpenTsDbClient client = new OpenTsDbClient(address, port, vertx, createIoContext(), blacklist,
+                batchSizers.get(), success -> {
+            if (!success) {
+                logger.warn(String.format("Failed to connect to host: %s port: %d, metrics will be buffered while "
+                        + "retrying", address, port));
+            }
+        });
+        senders.add(client);
+        return client;
+    }
+
+    /**
+     * New event loop contexts are handed event loops round robin, spreading the clients across the loops
+     */
+    private Context createIoContext() {
+        return ((VertxInternal) vertx).createEventLoopContext(null, new JsonObject(),
+                Thread.currentThread().getContextClassLoader());
+    }
+
+    private void remove(OpenTsDbClient client) {
+        senders.remove(client);
+        client.closeWhenDrained(DRAIN_TIMEOUT_MILLI);
+    }
+
+    /**
+     * @return the writes handed to the clients' sockets that have not yet completed
+     */
+    public int getPendingWrites() {
+        int pending = 0;
+        for (MetricsSender sender : senders) {
+            if (sender instanceof OpenTsDbClient) { pending += ((OpenTsDbClient) sender).getPendingWrites(); }
+        }
+        return pending;
+    }
+
+    /**
+     * Close all the clients, used on shutdown
+     */
+    public void close() {
+        senders.forEach(MetricsSender::close);
+    }
+}
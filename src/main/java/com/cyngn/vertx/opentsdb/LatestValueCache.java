@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the most recent points of each series that passes through the reporter so "what is the current value of X"
+ *  can be answered locally instead of by querying OpenTsDb.
+ *
+ * Series are looked up by name and then tags, and kept on a list in the order they were last updated, when over the
+ *  memory cap the least recently updated series are evicted. Recording a point for a series already in the cache
+ *  doesn't allocate.
+ *
+ * Not thread safe.
+ */
+public class LatestValueCache {
+    public static final int DEFAULT_POINTS_PER_SERIES = 1;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    // object headers, map entries and the list links per series, a rough guess like the backlog's estimates
+    static final int SERIES_OVERHEAD_BYTES = 160;
+    static final int POINT_BYTES = 17;
+
+    private final int pointsPerSeries;
+    private final long maxBytes;
+    private final Map<String, Map<String, Entry>> series;
+    private Entry newest;
+    private Entry oldest;
+    private long bytes;
+    private int size;
+
+    private class Entry {
+        private final String name;
+        private final String tags;
+        private final long[] timestamps;
+        private final long[] values;
+        private final boolean[] floats;
+        private int count;
+        private int next;
+        private Entry newer;
+        private Entry older;
+
+        private Entry(String name, String tags) {
+            this.name = name;
+            this.tags = tags;
+            timestamps = new long[pointsPerSeries];
+            values = new long[pointsPerSeries];
+            floats = new boolean[pointsPerSeries];
+        }
+
+        private void add(Metric metric) {
+            timestamps[next] = metric.getTimestamp();
+            values[next] = metric.getRawValue();
+            floats[next] = metric.isFloat();
+            next = (next + 1) % pointsPerSeries;
+            count = Math.min(count + 1, pointsPerSeries);
+        }
+
+        private long bytes() {
+            return SERIES_OVERHEAD_BYTES + 2L * (name.length() + tags.length()) + (long) POINT_BYTES * pointsPerSeries;
+        }
+
+        private JsonObject toJson() {
+            JsonArray points = new JsonArray();
+            // newest first
+            for (int i = 1; i <= count; i++) {
+                int index = (next - i + pointsPerSeries) % pointsPerSeries;
+                points.add(new JsonObject().put("timestamp", timestamps[index]).put("value", floats[index]
+                        ? (Object) Double.longBitsToDouble(values[index]) : (Object) values[index]));
+            }
+            return new JsonObject().put("name", name).put("tags", parseTags(tags)).put("points", points);
+        }
+    }
+
+    /**
+     * @param pointsPerSeries how many of the most recent points to keep per series
+     * @param maxBytes roughly the most memory the cache can use
+     */
+    public LatestValueCache(int pointsPerSeries, long maxBytes) {
+        if (pointsPerSeries <= 0) { throw new IllegalArgumentException("pointsPerSeries must be positive"); }
+        this.pointsPerSeries = pointsPerSeries;
+        this.maxBytes = maxBytes;
+        series = new HashMap<>();
+    }
+
+    public void record(Metric metric) {
+        Map<String, Entry> byTags = series.get(metric.getName());
+        if (byTags == null) {
+            byTags = new HashMap<>();
+            series.put(metric.getName(), byTags);
+        }
+
+        Entry entry = byTags.get(metric.getTags());
+        if (entry == null) {
+            entry = new Entry(metric.getName(), metric.getTags());
+            byTags.put(entry.tags, entry);
+            bytes += entry.bytes();
+            size++;
+        } else {
+            unlink(entry);
+        }
+
+        entry.add(metric);
+        linkNewest(entry);
+
+        while (bytes > maxBytes && oldest != entry) { evict(oldest); }
+    }
+
+    /**
+     * @param name the full metric name, or a name prefix when prefixMatch is set
+     * @param prefixMatch whether to match every metric starting with the name
+     * @param tags tags the series must have, null to match any tags
+     * @param limit the max number of series to return
+     * @return the matching series ie [{"name" : "api.time", "tags" : {"host" : "a"},
+     *  "points" : [{"timestamp" : 1431000000000, "value" : 150.23}]}], newest point first
+     */
+    public JsonArray query(String name, boolean prefixMatch, JsonObject tags, int limit) {
+        JsonArray results = new JsonArray();
+        if (prefixMatch) {
+            for (Map.Entry<String, Map<String, Entry>> byName : series.entrySet()) {
+                if (byName.getKey().startsWith(name)) { addMatches(byName.getValue(), tags, limit, results); }
+                if (results.size() >= limit) { break; }
+            }
+        } else {
+            Map<String, Entry> byTags = series.get(name);
+            if (byTags != null) { addMatches(byTags, tags, limit, results); }
+        }
+        return results;
+    }
+
+    private static void addMatches(Map<String, Entry> byTags, JsonObject tags, int limit, JsonArray results) {
+        Iterator<Entry> entries = byTags.values().iterator();
+        while (entries.hasNext() && results.size() < limit) {
+            Entry entry = entries.next();
+            if (hasTags(entry.tags, tags)) { results.add(entry.toJson()); }
+        }
+    }
+
+    private static boolean hasTags(String seriesTags, JsonObject tags) {
+        if (tags == null) { return true; }
+        for (String key : tags.fieldNames()) {
+            if (!hasTag(seriesTags, key, String.valueOf(tags.getValue(key)))) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the space separated tags contain key=value
+     */
+    private static boolean hasTag(String seriesTags, String key, String value) {
+        int tagLength = key.length() + 1 + value.length();
+        int start = 0;
+        while (start < seriesTags.length()) {
+            int end = seriesTags.indexOf(' ', start);
+            if (end == -1) { end = seriesTags.length(); }
+            if (end - start == tagLength && seriesTags.startsWith(key, start)
+                    && seriesTags.charAt(start + key.length()) == '='
+                    && seriesTags.startsWith(value, start + key.length() + 1)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static JsonObject parseTags(String tags) {
+        JsonObject parsed = new JsonObject();
+        for (String tag : tags.split(" ")) {
+            int separator = tag.indexOf('=');
+            if (separator > 0) { parsed.put(tag.substring(0, separator), tag.substring(separator + 1)); }
+        }
+        return parsed;
+    }
+
+    private void evict(Entry entry) {
+        unlink(entry);
+        Map<String, Entry> byTags = series.get(entry.name);
+        byTags.remove(entry.tags);
+        if (byTags.isEmpty()) { series.remove(entry.name); }
+        bytes -= entry.bytes();
+        size--;
+    }
+
+    private void linkNewest(Entry entry) {
+        entry.older = newest;
+        entry.newer = null;
+        if (newest != null) { newest.newer = entry; }
+        newest = entry;
+        if (oldest == null) { oldest = entry; }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.newer != null) { entry.newer.older = entry.older; }
+        else { newest = entry.older; }
+        if (entry.older != null) { entry.older.newer = entry.newer; }
+        else { oldest = entry.newer; }
+        entry.newer = null;
+        entry.older = null;
+    }
+
+    /**
+     * @return the number of series cached
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the estimated memory used in bytes
+     */
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Sends to a reporter deployed with localConsumer, preferring the one in this JVM and falling back to the cluster
+ *  address when there isn't one.
+ *
+ * The local address only has handlers in JVMs running a reporter, so a send there fails straight away with no
+ *  handlers anywhere else and is retried on the cluster address, which any reporter in the cluster handles.
+ */
+public final class LocalFirstSender {
+
+    private LocalFirstSender() {}
+
+    /**
+     * @param bus the event bus
+     * @param address the reporter's address
+     * @param clusterAddress the reporter's cluster address, by default the address with the cluster suffix
+     * @param message the message, ie an add
+     * @param replyHandler gets the reply from whichever reporter handled the message
+     */
+    public static <T> void send(EventBus bus, String address, String clusterAddress, JsonObject message,
+                                Handler<AsyncResult<Message<T>>> replyHandler) {
+        bus.<T>send(address, message, result -> {
+            if (result.failed() && result.cause() instanceof ReplyException
+                    && ((ReplyException) result.cause()).failureType() == ReplyFailure.NO_HANDLERS) {
+                bus.send(clusterAddress, message, replyHandler);
+            } else {
+                replyHandler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * Send using the default cluster address for the address
+     */
+    public static <T> void send(EventBus bus, String address, JsonObject message,
+                                Handler<AsyncResult<Message<T>>> replyHandler) {
+        send(bus, address, address + Namespace.CLUSTER_ADDRESS_SUFFIX, message, replyHandler);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A single parsed data point waiting to be queued, values are held as a raw long or the bits of a double so integer
+ *  and floating point values keep the type OpenTsDb stores them as.
+ */
+public class Metric {
+    private final String name;
+    private final String tags;
+    private final long timestamp;
+    private final long value;
+    private final boolean isFloat;
+
+    private Metric(String name, String tags, long timestamp, long value, boolean isFloat) {
+        this.name = name;
+        this.tags = tags;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.isFloat = isFloat;
+    }
+
+    public static Metric ofLong(String name, String tags, long timestamp, long value) {
+        return new Metric(name, tags, timestamp, value, false);
+    }
+
+    public static Metric ofDouble(String name, String tags, long timestamp, double value) {
+        return new Metric(name, tags, timestamp, Double.doubleToRawLongBits(value), true);
+    }
+
+    /**
+     * Parse a value straight out of a network buffer, integers are parsed without any intermediate String.
+     *
+     * @param buffer the buffer holding the value
+     * @param start the index of the first byte of the value
+     * @param end the index after the last byte of the value
+     * @return the metric or null if the value isn't a finite integer or floating point number
+     */
+    public static Metric parse(Buffer buffer, int start, int end, String name, String tags, long timestamp) {
+        if (start >= end) { return null; }
+        boolean negative = buffer.getByte(start) == '-';
+        int digitStart = negative || buffer.getByte(start) == '+' ? start + 1 : start;
+        if (digitStart == end) { return null; }
+
+        long value = 0;
+        boolean isFloat = false;
+        for (int i = digitStart; i < end && !isFloat; i++) {
+            byte current = buffer.getByte(i);
+            if (current >= '0' && current <= '9') {
+                // fall back to parsing as a double on overflow
+                isFloat = value > (Long.MAX_VALUE - 9) / 10;
+                value = value * 10 + (current - '0');
+            } else if (current == '.' || current == 'e' || current == 'E') {
+                isFloat = true;
+            } else {
+                return null;
+            }
+        }
+
+        if (!isFloat) { return ofLong(name, tags, timestamp, negative ? -value : value); }
+
+        double doubleValue;
+        try {
+            doubleValue = Double.parseDouble(buffer.getString(start, end));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return Double.isNaN(doubleValue) || Double.isInfinite(doubleValue) ? null
+                : ofDouble(name, tags, timestamp, doubleValue);
+    }
+
+    /**
+     * @return a copy of the metric with the same time and value under a different name and tags
+     */
+    public Metric withNameAndTags(String name, String tags) {
+        return new Metric(name, tags, timestamp, value, isFloat);
+    }
+
+    /**
+     * @return the fully qualified metric name, including any prefix
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the tags in OpenTsDb format ie 'name1=value1 name2=value2'
+     */
+    public String getTags() {
+        return tags;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the raw value, the bits of a double when {@link #isFloat()}
+     */
+    public long getRawValue() {
+        return value;
+    }
+
+    public boolean isFloat() {
+        return isFloat;
+    }
+
+    public double getValue() {
+        return isFloat ? Double.longBitsToDouble(value) : value;
+    }
+
+    /**
+     * @return the metric as an OpenTsDb telnet put command
+     */
+    public String toPutString() {
+        return String.format("put %s %d %s %s\n", name, timestamp, Util.formatValue(value, isFloat), tags);
+    }
+}
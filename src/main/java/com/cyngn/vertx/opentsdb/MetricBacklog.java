@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Queues metrics waiting to be flushed in one lane per {@link MetricPriority}.
+ *
+ * Lanes are drained in priority order, when a flush is capped each lane is guaranteed its weighted share of the flush
+ *  so critical metrics keep moving while bulk traffic is throttled. The backlog can be bounded by metric count and by
+ *  bytes, when at capacity the lowest priority lane holding data is shed to make room for higher priority metrics and
+ *  after that the {@link SheddingPolicy} decides what goes.
+ *
+ * Points are stored column wise against an interned {@link SeriesDictionary} rather than as encoded strings, a queued
+ *  point costs {@link #POINT_BYTES} plus its share of the series it belongs to and is only rendered at flush time.
+ */
+public class MetricBacklog {
+
+    public static final int UNBOUNDED = Integer.MIN_VALUE;
+    // when sampling, metrics start being sampled once the backlog is this full
+    public static final double SAMPLING_THRESHOLD = 0.5;
+    // series id, timestamp, value and value type
+    public static final int POINT_BYTES = 4 + 8 + 8 + 1;
+    public static final int DEFAULT_MAX_SERIES = 100000;
+
+    private final List<PointStore> lanes;
+    private final SeriesDictionary dictionary;
+    private final int[] weights;
+    private final int totalWeight;
+    private final int maxSize;
+    private final long maxBytes;
+    private final SheddingPolicy policy;
+    private int size;
+    private long rejected;
+    private long shed;
+
+    /**
+     * @param maxSize the max metrics to hold across all lanes or {@link #UNBOUNDED}
+     * @param maxBytes the max bytes of memory held by queued metrics or {@link #UNBOUNDED}
+     * @param policy how to make room when there is nothing of lower priority to shed
+     * @param weights the relative share of a capped flush for each lane, indexed by priority ordinal
+     * @param maxSeries the number of series to hold before sweeping out any that have nothing queued
+     */
+    public MetricBacklog(int maxSize, long maxBytes, SheddingPolicy policy, int[] weights, int maxSeries) {
+        if (weights.length != MetricPriority.values().length) {
+            throw new IllegalArgumentException("Expected a weight for each of " + MetricPriority.values().length
+                    + " priorities");
+        }
+
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.weights = weights;
+        lanes = new ArrayList<>(weights.length);
+        dictionary = new SeriesDictionary(maxSeries);
+
+        int total = 0;
+        for (int weight : weights) {
+            if (weight <= 0) { throw new IllegalArgumentException("Priority weights must be positive"); }
+            total += weight;
+            lanes.add(new PointStore());
+        }
+        totalWeight = total;
+    }
+
+    public MetricBacklog(int maxSize, long maxBytes, SheddingPolicy policy, int[] weights) {
+        this(maxSize, maxBytes, policy, weights, DEFAULT_MAX_SERIES);
+    }
+
+    public MetricBacklog(int maxSize, int[] weights) {
+        this(maxSize, UNBOUNDED, SheddingPolicy.DROP_NEWEST, weights);
+    }
+
+    public MetricBacklog(int maxSize) {
+        this(maxSize, defaultWeights());
+    }
+
+    public static int[] defaultWeights() {
+        MetricPriority[] priorities = MetricPriority.values();
+        int[] weights = new int[priorities.length];
+        for (MetricPriority priority : priorities) { weights[priority.ordinal()] = priority.getDefaultWeight(); }
+        return weights;
+    }
+
+    /**
+     * Queue a metric, shedding lower priority metrics if the backlog is full.
+     *
+     * @param metric the parsed metric
+     * @param priority the lane to queue the metric in
+     * @return false if there was no room for the metric and it was discarded
+     */
+    public synchronized boolean add(Metric metric, MetricPriority priority) {
+        if (policy == SheddingPolicy.SAMPLE && priority != MetricPriority.CRITICAL && !sample()) {
+            rejected++;
+            return false;
+        }
+
+        if (!hasRoom() && !shedBelow(priority) && (policy != SheddingPolicy.DROP_OLDEST || !shedOldest(priority))) {
+            rejected++;
+            return false;
+        }
+
+        int seriesId = dictionary.acquire(metric.getName(), metric.getTags());
+        lanes.get(priority.ordinal()).add(seriesId, metric.getTimestamp(), metric.getRawValue(), metric.isFloat());
+        size++;
+        return true;
+    }
+
+    private boolean hasRoom() {
+        return (maxSize == UNBOUNDED || size < maxSize)
+                && (maxBytes == UNBOUNDED || bytes() + POINT_BYTES <= maxBytes);
+    }
+
+    /**
+     * Past the sampling threshold accept metrics with a probability that falls linearly to zero as the backlog fills.
+     */
+    private boolean sample() {
+        double utilization = Math.max(maxSize == UNBOUNDED ? 0 : (double) size / maxSize,
+                maxBytes == UNBOUNDED ? 0 : (double) (bytes() + POINT_BYTES) / maxBytes);
+        if (utilization <= SAMPLING_THRESHOLD) { return true; }
+
+        double keepProbability = (1.0 - utilization) / (1.0 - SAMPLING_THRESHOLD);
+        return ThreadLocalRandom.current().nextDouble() < keepProbability;
+    }
+
+    private boolean shedBelow(MetricPriority priority) {
+        for (int i = lanes.size() - 1; i > priority.ordinal(); i--) {
+            PointStore lane = lanes.get(i);
+            while (!hasRoom()) {
+                if (!remove(lane.removeLast())) { break; }
+            }
+            if (hasRoom()) { return true; }
+        }
+        return false;
+    }
+
+    private boolean shedOldest(MetricPriority priority) {
+        PointStore lane = lanes.get(priority.ordinal());
+        while (!hasRoom()) {
+            if (!remove(lane.removeFirst())) { return false; }
+        }
+        return true;
+    }
+
+    private boolean remove(int seriesId) {
+        if (seriesId == -1) { return false; }
+        dictionary.release(seriesId);
+        size--;
+        shed++;
+        return true;
+    }
+
+    /**
+     * Drain queued metrics highest priority first.
+     *
+     * @param maxMetrics the max to drain, when less than the backlog size each lane gets its weighted share
+     * @return the drained points
+     */
+    public synchronized PointBatch drain(int maxMetrics) {
+        PointBatch batch = new PointBatch(Math.min(size, maxMetrics));
+        if (size <= maxMetrics) {
+            for (PointStore lane : lanes) { lane.drainTo(batch, Integer.MAX_VALUE, dictionary); }
+            size = 0;
+            return batch;
+        }
+
+        int[] quotas = new int[lanes.size()];
+        int assigned = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            quotas[i] = Math.min(lanes.get(i).size(), (int) ((long) maxMetrics * weights[i] / totalWeight));
+            assigned += quotas[i];
+        }
+
+        // hand any share unused by a quiet lane to the remaining lanes in priority order
+        for (int i = 0; i < lanes.size() && assigned < maxMetrics; i++) {
+            int extra = Math.min(lanes.get(i).size() - quotas[i], maxMetrics - assigned);
+            if (extra > 0) {
+                quotas[i] += extra;
+                assigned += extra;
+            }
+        }
+
+        for (int i = 0; i < lanes.size(); i++) { size -= lanes.get(i).drainTo(batch, quotas[i], dictionary); }
+        return batch;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param priority the lane to check
+     * @return the number of metrics queued in the lane
+     */
+    public synchronized int size(MetricPriority priority) {
+        return lanes.get(priority.ordinal()).size();
+    }
+
+    /**
+     * @return the approximate bytes of memory held by queued metrics and the series they reference
+     */
+    public synchronized long bytes() {
+        return (long) size * POINT_BYTES + dictionary.referencedBytes();
+    }
+
+    /**
+     * @return the number of distinct series held
+     */
+    public synchronized int seriesCount() {
+        return dictionary.size();
+    }
+
+    /**
+     * @return the count of incoming metrics rejected for lack of room since the last call
+     */
+    public synchronized long getAndResetRejected() {
+        long count = rejected;
+        rejected = 0;
+        return count;
+    }
+
+    /**
+     * @return the count of queued metrics shed to make room since the last call
+     */
+    public synchronized long getAndResetShed() {
+        long count = shed;
+        shed = 0;
+        return count;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, expiring set of metric names that OpenTsDb has rejected, ie because 'tsd.core.auto_create_metrics' is off.
+ *  Metrics in the list are discarded before being encoded rather than being re-sent to a TSD that will always reject
+ *  them.
+ */
+public class MetricBlacklist {
+    private static final Logger logger = LoggerFactory.getLogger(MetricBlacklist.class);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_EXPIRY_MILLI = 1000 * 60 * 10;
+
+    private final Cache<String, Boolean> metrics;
+
+    public MetricBlacklist(int maxSize, long expiryMilli) {
+        metrics = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expiryMilli, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Add a metric OpenTsDb refused to accept
+     *
+     * @param metricName the fully qualified metric name, including any prefix
+     */
+    public void add(String metricName) {
+        if (metrics.getIfPresent(metricName) == null) {
+            logger.warn(String.format("Blacklisting metric '%s' rejected by OpenTsDb", metricName));
+            metrics.put(metricName, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @param metricName the fully qualified metric name, including any prefix
+     * @return true if the metric has been rejected by OpenTsDb and has not yet expired from the list
+     */
+    public boolean contains(String metricName) {
+        return metrics.getIfPresent(metricName) != null;
+    }
+
+    public boolean isEmpty() {
+        return metrics.size() == 0;
+    }
+}
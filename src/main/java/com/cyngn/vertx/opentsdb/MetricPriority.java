@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+/**
+ * The lanes metrics are queued in, lanes are drained highest priority first and shed lowest priority first.
+ */
+public enum MetricPriority {
+    CRITICAL(6), NORMAL(3), BULK(1);
+
+    private final int defaultWeight;
+
+    MetricPriority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * @return the share of a flush this lane gets relative to the other lanes when flushes are capped
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * @param priority the name of the priority, case insensitive
+     * @return the matching priority or null if there isn't one
+     */
+    public static MetricPriority fromString(String priority) {
+        for (MetricPriority value : values()) {
+            if (value.name().equalsIgnoreCase(priority)) { return value; }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+/**
+ * Where parsed metrics are handed off for queueing, shared by the event bus and the network ingest paths.
+ */
+@FunctionalInterface
+public interface MetricSink {
+
+    /**
+     * @param name the metric name as it was sent, before any prefix is applied
+     * @param metric the parsed metric
+     * @return null if the metric was queued, otherwise why it was discarded
+     */
+    String accept(String name, Metric metric);
+}
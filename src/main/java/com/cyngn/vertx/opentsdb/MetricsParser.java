@@ -16,8 +16,6 @@ package com.cyngn.vertx.opentsdb;
 
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 
 import java.util.function.BiConsumer;
 
@@ -33,16 +31,38 @@ public class MetricsParser {
     private final BiConsumer<Message<JsonObject>, String> errorHandler;
     private final String defaultTags;
     private final String prefix;
+    private final MetricBlacklist blacklist;
     private boolean hasPrefix;
 
     public MetricsParser(String prefix, String defaultTags, BiConsumer<Message<JsonObject>, String> errorHandler) {
+        this(prefix, defaultTags, null, errorHandler);
+    }
+
+    public MetricsParser(String prefix, String defaultTags, MetricBlacklist blacklist,
+                         BiConsumer<Message<JsonObject>, String> errorHandler) {
         this.prefix = prefix;
         hasPrefix = prefix != null && prefix.length() > 0;
         this.defaultTags = defaultTags == null ? "" : defaultTags;
+        this.blacklist = blacklist;
         this.errorHandler = errorHandler;
     }
 
+    /**
+     * @param message the add message
+     * @return the metric as an OpenTsDb put command or null if the message is invalid
+     */
     public String createMetricString(Message<JsonObject> message) {
+        Metric metric = parse(message);
+        return metric == null ? null : metric.toPutString();
+    }
+
+    /**
+     * Parse and validate an add message, failures are passed to the error handler
+     *
+     * @param message the add message
+     * @return the metric or null if the message is invalid
+     */
+    public Metric parse(Message<JsonObject> message) {
         JsonObject body = message.body();
 
         String metricName = body.getString(NAME_FIELD, "");
@@ -51,8 +71,14 @@ public class MetricsParser {
             return null;
         }
 
-        String metricValue = body.getString(VALUE_FIELD, "");
-        if (metricValue.length() == 0) {
+        String fullName = hasPrefix ? prefix + "." + metricName : metricName;
+        if (blacklist != null && !blacklist.isEmpty() && blacklist.contains(fullName)) {
+            errorHandler.accept(message, "Metric '" + fullName + "' was rejected by OpenTsDb, discarding");
+            return null;
+        }
+
+        Object metricValue = body.getValue(VALUE_FIELD);
+        if (metricValue == null || "".equals(metricValue)) {
             errorHandler.accept(message, "All metrics need a 'value' field");
             return null;
         }
@@ -69,12 +95,44 @@ public class MetricsParser {
             return null;
         }
 
-        String metric = (hasPrefix) ?
-                String.format("put %s.%s %d %s %s\n", prefix, metricName,
-                        DateTime.now(DateTimeZone.UTC).toDate().getTime(), metricValue, tags)
-                : String.format("put %s %d %s %s\n", metricName, DateTime.now(DateTimeZone.UTC).toDate().getTime(),
-                metricValue, tags);
-
+        Metric metric = createMetric(fullName, tags, System.currentTimeMillis(), metricValue);
+        if (metric == null) { errorHandler.accept(message, "Invalid 'value' field: " + metricValue); }
         return metric;
     }
+
+    /**
+     * Values can be sent as JSON numbers or as strings, integers are kept as integers
+     *
+     * @return the metric or null if the value isn't a finite number
+     */
+    private static Metric createMetric(String name, String tags, long timestamp, Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return Metric.ofLong(name, tags, timestamp, ((Number) value).longValue());
+        }
+
+        double doubleValue;
+        if (value instanceof Number) {
+            doubleValue = ((Number) value).doubleValue();
+        } else if (value instanceof String) {
+            String stringValue = (String) value;
+            if (Util.isInteger(stringValue)) {
+                try {
+                    return Metric.ofLong(name, tags, timestamp, Long.parseLong(stringValue));
+                } catch (NumberFormatException ex) {
+                    // too big for a long, sent on as a double like Metric.parse does
+                }
+            }
+            try {
+                doubleValue = Double.parseDouble(stringValue);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        // OpenTsDb can't store these
+        if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) { return null; }
+        return Metric.ofDouble(name, tags, timestamp, doubleValue);
+    }
 }
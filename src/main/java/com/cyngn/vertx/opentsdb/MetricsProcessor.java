@@ -15,7 +15,12 @@
 package com.cyngn.vertx.opentsdb;
 
 import com.cyngn.vertx.opentsdb.client.MetricsSender;
-import io.vertx.core.buffer.Buffer;
+import com.cyngn.vertx.opentsdb.jfr.FlightRecorderEvents;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
@@ -23,81 +28,281 @@ import io.vertx.core.logging.impl.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * Handles chunking metric data into optimal sizes to OpenTsdb
+ * Handles chunking metric data into optimal sizes to OpenTsdb, points are rendered into put commands only at flush
+ *  time, straight into pooled direct buffers which are handed off to the senders and returned to the pool once the
+ *  socket write completes.
+ *
+ * Large drains, ie catching up after an outage, are split into segments that are rendered in parallel on the encode
+ *  pool and then handed to their senders in order back on the flushing context.
+ *
+ * Each flush is recorded as a JFR event with the time spent draining and rendering, when a recording enables it.
  *
  * @author truelove@cyngn.com (Jeremy Truelove) 11/10/14
  */
 public class MetricsProcessor {
     private static final Logger logger = LoggerFactory.getLogger(MetricsProcessor.class);
+    public static final int DEFAULT_PARALLEL_ENCODE_THRESHOLD = 50000;
+    private static final int MIN_SEGMENT_SIZE = 10000;
+    // a guess at the size of a put line until one has been rendered
+    private static final int DEFAULT_LINE_BYTES = 100;
+
     private final List<MetricsSender> metricsSenders;
     private final int maxBufferSizeInBytes;
     private final EventBus bus;
-
+    private final ByteBufAllocator allocator;
+    private final int maxMetricsPerFlush;
+    private final int parallelEncodeThreshold;
+    private final ForkJoinPool encodePool;
+    private PointBatch encoding;
+    private int lineBytes = DEFAULT_LINE_BYTES;
 
     public MetricsProcessor(List<MetricsSender> metricsSenders, int maxBufferSizeInBytes, EventBus bus) {
+        this(metricsSenders, maxBufferSizeInBytes, Integer.MAX_VALUE, bus);
+    }
+
+    public MetricsProcessor(List<MetricsSender> metricsSenders, int maxBufferSizeInBytes, int maxMetricsPerFlush,
+                            EventBus bus) {
+        this(metricsSenders, maxBufferSizeInBytes, maxMetricsPerFlush, Integer.MAX_VALUE, null, bus);
+    }
+
+    /**
+     * @param metricsSenders the senders to split data across
+     * @param maxBufferSizeInBytes the max bytes to send in a single write, unless a sender picks its own size
+     * @param maxMetricsPerFlush the max metrics to drain from the backlog per flush
+     * @param parallelEncodeThreshold drains of at least this many points are rendered in parallel
+     * @param encodePool the pool to render large drains on, null to always render on the calling thread
+     * @param bus the event bus to report failures on
+     */
+    public MetricsProcessor(List<MetricsSender> metricsSenders, int maxBufferSizeInBytes, int maxMetricsPerFlush,
+                            int parallelEncodeThreshold, ForkJoinPool encodePool, EventBus bus) {
         this.metricsSenders = metricsSenders;
         this.maxBufferSizeInBytes = maxBufferSizeInBytes;
+        this.maxMetricsPerFlush = maxMetricsPerFlush;
+        this.parallelEncodeThreshold = parallelEncodeThreshold;
+        this.encodePool = encodePool;
         this.bus = bus;
+        this.allocator = PooledByteBufAllocator.DEFAULT;
     }
 
     /**
-     * Given a queue of metrics to send, process the metrics into the right format and send them over a socket
+     * Given a backlog of metrics to send, drain up to the max metrics per flush highest priority first, render them
+     *  into put commands and send them over a socket
      *
-     * @param metrics the metrics queue to work off
+     * @param backlog the prioritized backlog to work off
      */
-    public void processMetrics(LinkedBlockingQueue<String> metrics) {
-        int metricCount = metrics.size();
-        if (metricCount == 0) {return;}
-        List<String> drainedMetrics = new ArrayList<>();
-
-        metrics.drainTo(drainedMetrics);
-        Buffer outputBuffer = Buffer.buffer();
-
-        int senderPos = 0;
-        MetricsSender currentSender = metricsSenders.get(senderPos);
-
-        int nextRotateIndex = drainedMetrics.size() / metricsSenders.size();
-        int switchInterval = nextRotateIndex + 1;
-
-        // loop through and serialize the metrics and send them as we fill the buffer up to max buffer
-        for (int i = 0; i < drainedMetrics.size(); i++) {
-            // ponder if one of the host is disconnected
-            if (i == nextRotateIndex) {
-                // flush the current remaining data queued before moving to the next sender
-                outputBuffer = write(currentSender, outputBuffer);
-
-                senderPos++;
-                currentSender = metricsSenders.get(senderPos);
-                nextRotateIndex += switchInterval;
-            }
+    public void processMetrics(MetricBacklog backlog) {
+        processMetrics(backlog, maxMetricsPerFlush);
+    }
+
+    /**
+     * Drain up to the given number of metrics rather than the max per flush, ie for bounded slices on shutdown
+     *
+     * @param backlog the prioritized backlog to work off
+     * @param maxMetrics the max metrics to drain
+     */
+    public void processMetrics(MetricBacklog backlog, int maxMetrics) {
+        // a large drain is still being rendered, let the backlog build until it has been sent
+        if (backlog.size() == 0 || encoding != null) {return;}
+
+        // leave the metrics in the backlog until there is somewhere to send them
+        List<MetricsSender> senders = getConnectedSenders();
+        if (senders.isEmpty()) {return;}
+
+        Object flush = FlightRecorderEvents.beginFlush();
+        PointBatch batch = backlog.drain(maxMetrics);
+        FlightRecorderEvents.drained(flush, batch.size());
 
-            String metric = drainedMetrics.get(i);
-            byte[] bytes = metric.getBytes();
+        Context context = Vertx.currentContext();
+        if (batch.size() >= parallelEncodeThreshold && encodePool != null && context != null) {
+            sendParallel(batch, senders, context, flush);
+        } else {
+            send(batch, senders, flush);
+            FlightRecorderEvents.commitFlush(flush, senders.size(), false);
+        }
+    }
+
+    /**
+     * @return true if there is a connected sender, every connected sender can take another write and no large drain
+     *  is still being rendered
+     */
+    public boolean isWritable() {
+        if (encoding != null) { return false; }
+
+        boolean connected = false;
+        for (MetricsSender sender : metricsSenders) {
+            if (!sender.isConnected()) { continue; }
+            if (!sender.isWritable()) { return false; }
+            connected = true;
+        }
+        return connected;
+    }
+
+    /**
+     * @return true if a large drain is being rendered and hasn't been handed to the senders yet
+     */
+    public boolean isEncoding() {
+        return encoding != null;
+    }
+
+    /**
+     * Stops a large drain that is still being rendered from being handed to the senders, ie when they are about to be
+     *  closed
+     *
+     * @return the points of the abandoned drain, null if no drain was being rendered
+     */
+    public PointBatch cancelEncode() {
+        PointBatch abandoned = encoding;
+        encoding = null;
+        return abandoned;
+    }
 
-            // if this would exceed the max buffer to send go ahead and pass to the sender
-            if (bytes.length + outputBuffer.length() > maxBufferSizeInBytes) {
-                outputBuffer = write(currentSender, outputBuffer);
+    /**
+     * @return about how many points the connected senders can take with a single write each, going by the size of the
+     *  lines rendered so far
+     */
+    public int getWritablePoints() {
+        int connected = 0;
+        int minBatchSize = Integer.MAX_VALUE;
+        for (MetricsSender sender : metricsSenders) {
+            if (!sender.isConnected()) { continue; }
+            connected++;
+            minBatchSize = Math.min(minBatchSize, sender.getBatchSize(maxBufferSizeInBytes));
+        }
+        return connected == 0 ? 0 : connected * Math.max(1, minBatchSize / lineBytes);
+    }
+
+    private List<MetricsSender> getConnectedSenders() {
+        List<MetricsSender> connected = new ArrayList<>(metricsSenders.size());
+        for (MetricsSender sender : metricsSenders) {
+            if (sender.isConnected()) { connected.add(sender); }
+        }
+        return connected;
+    }
+
+    /**
+     * The first sender gets size / senders points and the rest one more than that each, until the points run out.
+     *
+     * @return the index each sender's range of points starts at, followed by the batch size
+     */
+    private int[] getSenderRanges(int size, int senderCount) {
+        int[] starts = new int[senderCount + 1];
+        int firstRange = size / senderCount;
+        for (int i = 1; i < senderCount; i++) {
+            starts[i] = Math.min(size, firstRange + (i - 1) * (firstRange + 1));
+        }
+        starts[senderCount] = size;
+        return starts;
+    }
+
+    private void send(PointBatch batch, List<MetricsSender> senders, Object flush) {
+        int[] starts = getSenderRanges(batch.size(), senders.size());
+        for (int i = 0; i < senders.size(); i++) {
+            MetricsSender sender = senders.get(i);
+            int batchSize = sender.getBatchSize(maxBufferSizeInBytes);
+            List<ByteBuf> chunks = encode(batch, starts[i], starts[i + 1], batchSize);
+            updateLineBytes(chunks, starts[i + 1] - starts[i]);
+            FlightRecorderEvents.encoded(flush, chunks);
+            for (ByteBuf chunk : chunks) { write(sender, chunk); }
+            FlightRecorderEvents.written(flush);
+        }
+    }
+
+    private void sendParallel(PointBatch batch, List<MetricsSender> senders, Context context, Object flush) {
+        int segmentSize = Math.max(MIN_SEGMENT_SIZE, batch.size() / (encodePool.getParallelism() * 2) + 1);
+        int[] starts = getSenderRanges(batch.size(), senders.size());
+
+        List<MetricsSender> targets = new ArrayList<>();
+        List<CompletableFuture<List<ByteBuf>>> segments = new ArrayList<>();
+        for (int i = 0; i < senders.size(); i++) {
+            int batchSize = senders.get(i).getBatchSize(maxBufferSizeInBytes);
+            for (int start = starts[i]; start < starts[i + 1]; start += segmentSize) {
+                int from = start;
+                int to = Math.min(start + segmentSize, starts[i + 1]);
+                targets.add(senders.get(i));
+                segments.add(CompletableFuture.supplyAsync(() -> encode(batch, from, to, batchSize), encodePool));
             }
+        }
+
+        encoding = batch;
+        CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, error) -> context.runOnContext(v -> {
+                    if (encoding != batch) {
+                        // cancelled, whoever cancelled it now owns the points
+                        releaseAll(segments);
+                        return;
+                    }
+                    encoding = null;
+                    for (int i = 0; i < segments.size(); i++) {
+                        // segments are handed over in order so each sender sees its points in drain order
+                        List<ByteBuf> chunks = segments.get(i).getNow(null);
+                        if (chunks == null || error != null) {
+                            if (chunks != null) { chunks.forEach(ByteBuf::release); }
+                            continue;
+                        }
+                        FlightRecorderEvents.encoded(flush, chunks);
+                        for (ByteBuf chunk : chunks) { write(targets.get(i), chunk); }
+                        FlightRecorderEvents.written(flush);
+                    }
+
+                    if (error != null) { logger.error("Failed rendering metrics, dropping the drained points", error); }
+                    FlightRecorderEvents.commitFlush(flush, senders.size(), true);
+                }));
+    }
 
-            outputBuffer.appendBytes(bytes);
+    private static void releaseAll(List<CompletableFuture<List<ByteBuf>>> segments) {
+        for (CompletableFuture<List<ByteBuf>> segment : segments) {
+            List<ByteBuf> chunks = segment.getNow(null);
+            if (chunks != null) { chunks.forEach(ByteBuf::release); }
         }
+    }
+
+    private void updateLineBytes(List<ByteBuf> chunks, int points) {
+        if (points == 0) { return; }
+        long bytes = 0;
+        for (ByteBuf chunk : chunks) { bytes += chunk.readableBytes(); }
+        lineBytes = (int) Math.max(1, bytes / points);
+    }
 
-        // send whatever is left in the buffer
-        if (outputBuffer.length() > 0) {
-            write(currentSender, outputBuffer);
+    /**
+     * Render a range of points into chunks of up to the batch size
+     */
+    private List<ByteBuf> encode(PointBatch batch, int start, int end, int batchSize) {
+        List<ByteBuf> chunks = new ArrayList<>();
+        ByteBuf outputBuffer = allocator.directBuffer(batchSize);
+
+        for (int i = start; i < end; i++) {
+            int lineStart = outputBuffer.writerIndex();
+            batch.writeLine(i, outputBuffer);
+
+            // if this exceeded the max buffer keep what came before it as a chunk and start the next chunk with it
+            if (outputBuffer.readableBytes() > batchSize && lineStart > outputBuffer.readerIndex()) {
+                ByteBuf nextBuffer = allocator.directBuffer(batchSize);
+                nextBuffer.writeBytes(outputBuffer, lineStart, outputBuffer.writerIndex() - lineStart);
+                outputBuffer.writerIndex(lineStart);
+
+                chunks.add(outputBuffer);
+                outputBuffer = nextBuffer;
+            }
+        }
+
+        if (outputBuffer.readableBytes() > 0) {
+            chunks.add(outputBuffer);
+        } else {
+            outputBuffer.release();
         }
+        return chunks;
     }
 
-    private Buffer write(MetricsSender sender, Buffer data) {
+    private void write(MetricsSender sender, ByteBuf data) {
+        // the sender owns the buffer from here on and releases it back to the pool
         boolean success = sender.write(data);
         if(!success) {
             bus.send(OpenTsDbReporter.ERROR_MESSAGE_ADDRESS, new JsonObject().put("error",
                     EventBusMessage.WRITE_FAILURE.toString()));
         }
-
-        return Buffer.buffer();
     }
 }
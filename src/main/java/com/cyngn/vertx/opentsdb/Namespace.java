@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A logical reporter sharing the module's backlog, flushing and TSD connections, with its own event bus address, metric
+ *  prefix, default tags and tag limit.
+ */
+public class Namespace {
+    public static final String CLUSTER_ADDRESS_SUFFIX = ".cluster";
+
+    private final String address;
+    private final String clusterAddress;
+    private final String prefix;
+    private final String defaultTags;
+    private final int defaultTagCount;
+    private final int maxTags;
+    private final MetricsParser parser;
+
+    /**
+     * @param config the namespace config ie {"address" : "tenant1.metrics", "prefix" : "tenant1", "tags" : {...}},
+     *  "clusterAddress" defaults to the address with the cluster suffix
+     * @param defaultAddress the address to use if the config doesn't have one, null if it is required
+     * @param defaultMaxTags the max tags to use if the config doesn't set them
+     * @param blacklist metrics OpenTsDb has rejected
+     * @param errorHandler where parsing errors go
+     * @throws IllegalArgumentException if there is no address
+     * @throws IllegalStateException if there are more default tags than the max
+     */
+    public Namespace(JsonObject config, String defaultAddress, int defaultMaxTags, MetricBlacklist blacklist,
+                     BiConsumer<Message<JsonObject>, String> errorHandler) {
+        address = config.getString("address", defaultAddress);
+        if (address == null) { throw new IllegalArgumentException("A namespace needs an address: " + config.encode()); }
+        clusterAddress = config.getString("clusterAddress", address + CLUSTER_ADDRESS_SUFFIX);
+
+        prefix = config.getString("prefix", null);
+        maxTags = config.getInteger("maxTags", defaultMaxTags);
+
+        JsonObject configuredTags = config.getJsonObject("tags");
+        if (configuredTags != null && configuredTags.size() > maxTags) {
+            throw new IllegalStateException("Found more default tags than the max (" + maxTags + ")");
+        }
+        defaultTagCount = configuredTags != null ? configuredTags.size() : 0;
+        defaultTags = Util.createTagsFromJson(configuredTags);
+        parser = new MetricsParser(prefix, defaultTags, blacklist, errorHandler);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the cluster wide address used alongside a node local address
+     */
+    public String getClusterAddress() {
+        return clusterAddress;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the tags added to every metric in OpenTsDb format
+     */
+    public String getDefaultTags() {
+        return defaultTags;
+    }
+
+    public int getDefaultTagCount() {
+        return defaultTagCount;
+    }
+
+    public int getMaxTags() {
+        return maxTags;
+    }
+
+    public MetricsParser getParser() {
+        return parser;
+    }
+}
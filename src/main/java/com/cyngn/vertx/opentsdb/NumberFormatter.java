@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes data point values and timestamps as ASCII straight into the output buffer without building a String.
+ *
+ * Doubles are written in plain decimal with the fewest fraction digits that still parse back to exactly the same
+ *  double, ie 150.23 rather than 150.22999999999999, and always with a '.' so OpenTsDb keeps storing them as floating
+ *  point. Values too large or small for that fall back to {@link Double#toString(double)}.
+ */
+public class NumberFormatter {
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final long MAX_EXACT = 1L << 53;
+    private static final double MIN_PLAIN = 1e-5;
+    private static final double MAX_PLAIN = 1e15;
+    private static final int MAX_FRACTION_DIGITS = 17;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+    // every power of ten a long can hold
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    static {
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < LONG_POWERS_OF_TEN.length; i++) { LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10; }
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) { POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i]; }
+    }
+
+    /**
+     * @param out the buffer to write to
+     * @param value the raw value, the bits of a double if isFloat
+     * @param isFloat whether the value is floating point
+     */
+    public static void writeValue(ByteBuf out, long value, boolean isFloat) {
+        if (isFloat) { writeDouble(out, Double.longBitsToDouble(value)); }
+        else { writeLong(out, value); }
+    }
+
+    public static void writeLong(ByteBuf out, long value) {
+        if (value == Long.MIN_VALUE) {
+            out.writeBytes(LONG_MIN_VALUE);
+            return;
+        }
+
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        writeDigits(out, value, digitCount(value));
+    }
+
+    public static void writeDouble(ByteBuf out, double value) {
+        if (Double.doubleToRawLongBits(value) < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+
+        if (value == 0) {
+            out.writeByte('0').writeByte('.').writeByte('0');
+            return;
+        }
+
+        if (value >= MIN_PLAIN && value < MAX_PLAIN) {
+            long integerPart = (long) value;
+            int maxFractionDigits = MAX_FRACTION_DIGITS - (integerPart == 0 ? 0 : digitCount(integerPart));
+            for (int fractionDigits = 0; fractionDigits <= maxFractionDigits; fractionDigits++) {
+                double scaled = value * POWERS_OF_TEN[fractionDigits];
+                if (scaled >= MAX_EXACT) { break; }
+
+                // both sides are exact doubles so the division is correctly rounded, if it gives back the value this is
+                //  the shortest decimal that parses to it
+                long digits = Math.round(scaled);
+                if (digits / POWERS_OF_TEN[fractionDigits] == value) {
+                    writePlain(out, digits, fractionDigits);
+                    return;
+                }
+            }
+        }
+
+        ByteBufUtil.writeAscii(out, Double.toString(value));
+    }
+
+    private static void writePlain(ByteBuf out, long digits, int fractionDigits) {
+        long integerPart = digits / LONG_POWERS_OF_TEN[fractionDigits];
+        writeDigits(out, integerPart, digitCount(integerPart));
+        out.writeByte('.');
+        if (fractionDigits == 0) {
+            out.writeByte('0');
+        } else {
+            writeDigits(out, digits - integerPart * LONG_POWERS_OF_TEN[fractionDigits], fractionDigits);
+        }
+    }
+
+    /**
+     * Write a non negative value zero padded to the given number of digits
+     */
+    private static void writeDigits(ByteBuf out, long value, int digits) {
+        out.ensureWritable(digits);
+        int end = out.writerIndex() + digits;
+        for (int i = end - 1; i >= out.writerIndex(); i--) {
+            out.setByte(i, (int) ('0' + value % 10));
+            value /= 10;
+        }
+        out.writerIndex(end);
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (digits < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[digits]) { digits++; }
+        return digits;
+    }
+}
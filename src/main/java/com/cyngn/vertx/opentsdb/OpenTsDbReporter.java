@@ -14,26 +14,44 @@
  */
 package com.cyngn.vertx.opentsdb;
 
+import com.cyngn.vertx.opentsdb.client.BatchSizer;
 import com.cyngn.vertx.opentsdb.client.MetricsSender;
 import com.cyngn.vertx.opentsdb.client.OpenTsDbClient;
-import com.google.common.collect.Queues;
+import com.cyngn.vertx.opentsdb.client.RollupClient;
+import com.cyngn.vertx.opentsdb.jfr.FlightRecorderEvents;
+import com.cyngn.vertx.opentsdb.metrics.JvmCollector;
+import com.cyngn.vertx.opentsdb.metrics.MetricWriter;
+import com.cyngn.vertx.opentsdb.metrics.OpenTsDbVertxMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.impl.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * Handles consuming metrics over the message bus, translating them into OpenTsDb metrics and queueing them up for send
@@ -46,137 +64,743 @@ public class OpenTsDbReporter extends AbstractVerticle implements Handler<Messag
     public final static String ERROR_MESSAGE_ADDRESS = "vertx-opentsdb-errors";
     private Logger logger = LoggerFactory.getLogger(OpenTsDbClient.class);
     public static final String ADD_COMMAND = "add";
+    public static final String UPDATE_HOSTS_COMMAND = "update_hosts";
+    public static final String QUERY_LATEST_COMMAND = "query_latest";
+    public static final String REPLICA_STATUS_COMMAND = "replica_status";
+    public static final String REPLICA_FIELD = "replica";
+    public static final int DEFAULT_QUERY_LIMIT = 100;
+    public static final String PRIORITY_FIELD = "priority";
     public static final int OPENTSDB_DEFAULT_MAX_TAGS = 8;
     private static int FIVE_MINUTES_MILLI = 1000 * 60 * 5;
+    private static final long REPLICA_RETRY_MILLI = 50;
+    public static final long DEFAULT_LAG_PROBE_INTERVAL_MILLI = 100;
+    private static final String BACKLOG_FULL_ERROR = "Backlog is at max defined capacity, discarding metric";
+    private static final String RATE_LIMITED_ERROR = "Rate limit exceeded, discarding metric";
+    public static final long DEFAULT_STOP_TIMEOUT_MILLI = 10000;
+    public static final int DEFAULT_STOP_SLICE_SIZE = 10000;
+    private static final long STOP_RETRY_MILLI = 10;
 
-    private JsonArray hosts;
     private final int DEFAULT_MTU = 1500;
     private int maxBufferSizeInBytes;
-    private LinkedBlockingQueue<String> metrics;
-    private int maxTags;
-    private int defaultTagCount;
-
-    private Map<String, Consumer<Message<JsonObject>>> handlers;
-    private List<MetricsSender> workers;
-    private String address;
-    private MetricsParser metricsParser;
+    private MetricBacklog metrics;
+    private PriorityRules priorityRules;
+    private RelabelRules relabelRules;
+    private RateLimiter rateLimiter;
+    private int maxMetricsPerFlush;
+    private int parallelEncodeThreshold;
+    private Namespace defaultNamespace;
+    private List<Namespace> namespaces;
+
+    private Map<String, BiConsumer<Namespace, Message<JsonObject>>> handlers;
+    private HostManager hostManager;
+    private Map<String, HostManager> hostManagers;
+    private List<ReplicaSet> replicaSets;
+    private int hostRefreshInterval;
+    private long hostRefreshTimerId = -1;
     private EventBus eventBus;
     private Integer flushInterval;
     private Integer maxBacklog;
+    private long maxBacklogBytes;
+    private SheddingPolicy sheddingPolicy;
+    private int dropReportInterval;
+    private long dropReportTimerId = -1;
     private long flushTimerId = -1;
+    private long replicaRetryTimerId = -1;
     private MetricsProcessor processor;
-    private String defaultTags;
     private long reportingTimerId = -1;
+    private MetricBlacklist blacklist;
+    private StatsdListener statsdListener;
+    private TelnetRelay relay;
+    private LatestValueCache latestValues;
+    private Rollups rollups;
+    private RollupClient rollupClient;
+    private MetricWriter metricWriter;
+    private OpenTsDbVertxMetrics vertxMetrics;
+    private JvmCollector jvmCollector;
+    private long jvmIntervalMilli;
+    private long jvmTimerId = -1;
+    // the JFR event counting drops since the last flush, null when there have been none or it isn't being recorded
+    private Object overloadDrops;
+    private final List<MessageConsumer<JsonObject>> consumers = new ArrayList<>();
+    private long stopTimeoutMilli;
+    private int stopSliceSize;
+    private String spillFile;
 
     @Override
     public void start(final Future<Void> startedResult) {
 
         JsonObject config = context.config();
-        hosts = config.getJsonArray("hosts", new JsonArray("[{ \"host\" : \"localhost\", \"port\" : 4242}]"));
         maxBufferSizeInBytes = config.getInteger("maxBufferSizeInBytes", DEFAULT_MTU);
-        String prefix = config.getString("prefix", null);
-        address = config.getString("address", "vertx.opentsdb-reporter");
-        maxTags = config.getInteger("maxTags", OPENTSDB_DEFAULT_MAX_TAGS);
         flushInterval = config.getInteger("flushIntervalMilli", 1000);
-        maxBacklog = config.getInteger("maxMetricBacklog", Integer.MIN_VALUE);
-
-        final JsonObject configuredTags = config.getJsonObject("tags");
-        if (configuredTags != null && configuredTags.size() > maxTags) {
-            startedResult.fail(new IllegalStateException("Found more default tags than the max (" + maxTags + ")"));
+        hostRefreshInterval = config.getInteger("hostRefreshIntervalMilli", 60000);
+        maxBacklog = config.getInteger("maxMetricBacklog", MetricBacklog.UNBOUNDED);
+        maxBacklogBytes = config.getLong("maxBacklogBytes", (long) MetricBacklog.UNBOUNDED);
+        maxMetricsPerFlush = config.getInteger("maxMetricsPerFlush", Integer.MAX_VALUE);
+        parallelEncodeThreshold = config.getInteger("parallelEncodeThreshold",
+                MetricsProcessor.DEFAULT_PARALLEL_ENCODE_THRESHOLD);
+        dropReportInterval = config.getInteger("dropReportIntervalMilli", 10000);
+        stopTimeoutMilli = config.getLong("stopTimeoutMilli", DEFAULT_STOP_TIMEOUT_MILLI);
+        stopSliceSize = Math.min(maxMetricsPerFlush, DEFAULT_STOP_SLICE_SIZE);
+        spillFile = config.getString("spillFile");
+        sheddingPolicy = SheddingPolicy.fromString(config.getString("sheddingPolicy", "drop_newest"));
+        if (sheddingPolicy == null) {
+            startedResult.fail(new IllegalArgumentException("Invalid sheddingPolicy: "
+                    + config.getString("sheddingPolicy")));
+            return;
         }
-        defaultTagCount = configuredTags != null ? configuredTags.size() : 0;
-        defaultTags = Util.createTagsFromJson(configuredTags);
+        blacklist = new MetricBlacklist(config.getInteger("blacklistMaxSize", MetricBlacklist.DEFAULT_MAX_SIZE),
+                config.getLong("blacklistExpiryMilli", MetricBlacklist.DEFAULT_EXPIRY_MILLI));
 
         eventBus = vertx.eventBus();
 
-        metricsParser = new MetricsParser(prefix, defaultTags, this::sendError);
-
-        // create the list of workers
-        workers = new ArrayList<>(hosts.size());
-        metrics = Queues.newLinkedBlockingQueue();
+        try {
+            createNamespaces(config);
+            JsonObject latestConfig = config.getJsonObject("latestValues");
+            if (latestConfig != null) {
+                latestValues = new LatestValueCache(
+                        latestConfig.getInteger("pointsPerSeries", LatestValueCache.DEFAULT_POINTS_PER_SERIES),
+                        latestConfig.getLong("maxBytes", LatestValueCache.DEFAULT_MAX_BYTES));
+            }
+            createRollups(config.getJsonObject("rollups"));
+            priorityRules = new PriorityRules(config.getJsonArray("priorities"));
+            relabelRules = new RelabelRules(config.getJsonArray("relabel"));
+            rateLimiter = new RateLimiter(config.getJsonObject("rateLimits"));
+            metrics = new MetricBacklog(maxBacklog, maxBacklogBytes, sheddingPolicy,
+                    getPriorityWeights(config.getJsonObject("priorityWeights")),
+                    config.getInteger("maxSeries", MetricBacklog.DEFAULT_MAX_SERIES));
+            createHostManagers(config);
+            startVertxMetrics(config.getJsonObject("vertxMetrics"));
+            JsonObject jvmConfig = config.getJsonObject("jvmMetrics");
+            if (jvmConfig != null) {
+                jvmCollector = new JvmCollector(getMetricWriter());
+                jvmIntervalMilli = jvmConfig.getLong("intervalMilli", JvmCollector.DEFAULT_INTERVAL_MILLI);
+            }
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            startedResult.fail(ex);
+            return;
+        }
 
-        initializeWorkers(startedResult);
+        initializeWorkers();
         createMessageHandlers();
 
-        eventBus.consumer(address, this);
+        boolean localConsumer = config.getBoolean("localConsumer", false);
+        registerConsumer(defaultNamespace, this, localConsumer);
+        for (Namespace namespace : namespaces) {
+            registerConsumer(namespace, message -> handle(namespace, message), localConsumer);
+        }
+        startListeners(config, startedResult);
+    }
+
+    /**
+     * On a clustered event bus a consumer on the address is one of many across the cluster, so sends are round robined
+     *  to reporters on other nodes at the cost of serializing each message and a network hop. A local consumer only
+     *  gets messages sent from this JVM, the cluster address is the fallback for producers on nodes without a reporter.
+     */
+    private void registerConsumer(Namespace namespace, Handler<Message<JsonObject>> handler, boolean localConsumer) {
+        if (!localConsumer) {
+            consumers.add(eventBus.consumer(namespace.getAddress(), handler));
+            return;
+        }
+        consumers.add(eventBus.localConsumer(namespace.getAddress(), handler));
+        consumers.add(eventBus.consumer(namespace.getClusterAddress(), handler));
+    }
+
+    /**
+     * The top level address, prefix and tags make up the default namespace, any others share everything but those
+     */
+    private void createNamespaces(JsonObject config) {
+        int maxTags = config.getInteger("maxTags", OPENTSDB_DEFAULT_MAX_TAGS);
+        defaultNamespace = new Namespace(config, "vertx.opentsdb-reporter", maxTags, blacklist, this::sendError);
+
+        namespaces = new ArrayList<>();
+        Set<String> addresses = new HashSet<>();
+        addresses.add(defaultNamespace.getAddress());
+        JsonArray configured = config.getJsonArray("namespaces", new JsonArray());
+        for (int i = 0; i < configured.size(); i++) {
+            Object namespaceConfig = configured.getValue(i);
+            if (!(namespaceConfig instanceof JsonObject)) {
+                throw new IllegalArgumentException("Invalid namespace: " + namespaceConfig);
+            }
+
+            Namespace namespace = new Namespace((JsonObject) namespaceConfig, null, maxTags, blacklist,
+                    this::sendError);
+            if (!addresses.add(namespace.getAddress())) {
+                throw new IllegalArgumentException("Duplicate namespace address: " + namespace.getAddress());
+            }
+            namespaces.add(namespace);
+        }
+    }
+
+    /**
+     * Either the hosts share the metrics between them, or when replicas are configured each replica set gets a full
+     *  copy of them
+     */
+    private void createHostManagers(JsonObject config) {
+        Supplier<BatchSizer> batchSizers = getBatchSizers(config.getJsonObject("adaptiveBatchSize"));
+        hostManagers = new LinkedHashMap<>();
+        replicaSets = new ArrayList<>();
+
+        JsonArray replicas = config.getJsonArray("replicas");
+        if (replicas == null) {
+            hostManager = new HostManager(vertx, blacklist, batchSizers);
+            hostManager.update(config.getJsonArray("hosts",
+                    new JsonArray("[{ \"host\" : \"localhost\", \"port\" : 4242}]")));
+            hostManagers.put("default", hostManager);
+            return;
+        }
+
+        if (config.containsKey("hosts")) { throw new IllegalArgumentException("Configure either hosts or replicas"); }
+        if (replicas.size() == 0) { throw new IllegalArgumentException("You must specify at least one replica set"); }
+        for (int i = 0; i < replicas.size(); i++) {
+            Object value = replicas.getValue(i);
+            if (!(value instanceof JsonObject)) { throw new IllegalArgumentException("Invalid replica set: " + value); }
+
+            JsonObject replica = (JsonObject) value;
+            String name = replica.getString("name");
+            JsonArray hosts = replica.getJsonArray("hosts");
+            SheddingPolicy policy = SheddingPolicy.fromString(replica.getString("sheddingPolicy", "drop_oldest"));
+            if (name == null || hosts == null || hosts.size() == 0 || policy == null) {
+                throw new IllegalArgumentException("Invalid replica set: " + replica.encode());
+            }
+            if (hostManagers.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate replica set: " + name);
+            }
+
+            HostManager manager = new HostManager(vertx, blacklist, batchSizers);
+            replicaSets.add(new ReplicaSet(name, manager.getSenders(),
+                    replica.getLong("maxBacklogBytes", ReplicaSet.DEFAULT_MAX_BACKLOG_BYTES), policy));
+            manager.update(hosts);
+            hostManagers.put(name, manager);
+        }
+        // the first set is the one updated when no replica set is named
+        hostManager = hostManagers.get(replicaSets.get(0).getName());
+    }
+
+    /**
+     * Rollups aggregate each series over the configured intervals, up to maxSeries series, and are posted to a TSD's
+     *  /api/rollup endpoint by their own HTTP client rather than over the telnet connections
+     */
+    private void createRollups(JsonObject rollupConfig) {
+        if (rollupConfig == null) { return; }
+
+        JsonArray intervals = rollupConfig.getJsonArray("intervals", Rollups.defaultIntervals());
+        rollups = new Rollups(intervals, rollupConfig.getInteger("maxSeries", Rollups.DEFAULT_MAX_SERIES),
+                rollupConfig.getLong("graceMilli", Rollups.DEFAULT_GRACE_MILLI));
+        rollupClient = new RollupClient(rollupConfig.getString("host", RollupClient.DEFAULT_HOST),
+                rollupConfig.getInteger("port", RollupClient.DEFAULT_PORT), vertx,
+                rollupConfig.getInteger("batchSize", RollupClient.DEFAULT_BATCH_SIZE),
+                rollupConfig.getLong("timeoutMilli", RollupClient.DEFAULT_TIMEOUT_MILLI));
+    }
+
+    /**
+     * Metrics recorded through the Vert.x metrics SPI are written straight into the backlog on each flush
+     */
+    private void startVertxMetrics(JsonObject vertxMetricsConfig) {
+        if (vertxMetricsConfig == null) { return; }
+
+        vertxMetrics = OpenTsDbVertxMetrics.get(vertx);
+        if (vertxMetrics == null) {
+            logger.warn("vertxMetrics is configured but Vert.x metrics are not enabled, enable them in the "
+                    + "VertxOptions");
+            return;
+        }
+
+        getMetricWriter();
+        vertxMetrics.startLagProbes(vertxMetricsConfig.getLong("lagProbeIntervalMilli",
+                DEFAULT_LAG_PROBE_INTERVAL_MILLI));
+    }
+
+    /**
+     * @return the writer the in process collectors use, under the default namespace's prefix and tags
+     */
+    private MetricWriter getMetricWriter() {
+        if (metricWriter == null) {
+            metricWriter = new MetricWriter(defaultNamespace.getPrefix(), defaultNamespace.getDefaultTags(),
+                    defaultNamespace.getDefaultTagCount(), defaultNamespace.getMaxTags(),
+                    this::ingest);
+        }
+        return metricWriter;
+    }
+
+    /**
+     * The module is started once the optional network listeners are bound
+     */
+    private void startListeners(JsonObject config, Future<Void> startedResult) {
+        List<Future<Void>> listening = new ArrayList<>();
+
+        JsonObject statsdConfig = config.getJsonObject("statsd");
+        if (statsdConfig != null) {
+            StatsdParser parser = new StatsdParser(defaultNamespace.getPrefix(), defaultNamespace.getDefaultTags(),
+                    defaultNamespace.getMaxTags() - defaultNamespace.getDefaultTagCount(), blacklist);
+            statsdListener = new StatsdListener(vertx, parser, this::ingest,
+                    statsdConfig.getInteger("receiveBufferSize", 0));
+            Future<Void> bound = Future.future();
+            statsdListener.listen(statsdConfig.getString("host", "0.0.0.0"),
+                    statsdConfig.getInteger("port", StatsdListener.DEFAULT_PORT), completer(bound));
+            listening.add(bound);
+        }
+
+        JsonObject relayConfig = config.getJsonObject("relay");
+        if (relayConfig != null) {
+            relay = new TelnetRelay(vertx, new PutLineParser(defaultNamespace.getMaxTags(), blacklist),
+                    this::ingest,
+                    relayConfig.getInteger("maxLineLength", TelnetRelay.DEFAULT_MAX_LINE_LENGTH));
+            Future<Void> bound = Future.future();
+            relay.listen(relayConfig.getString("host", "0.0.0.0"),
+                    relayConfig.getInteger("port", TelnetRelay.DEFAULT_PORT), completer(bound));
+            listening.add(bound);
+        }
+
+        if (listening.isEmpty()) {
+            startedResult.complete();
+            return;
+        }
+
+        for (Future<Void> bound : listening) {
+            bound.setHandler(result -> {
+                if (startedResult.isComplete()) { return; }
+                if (result.failed()) { startedResult.fail(result.cause()); }
+                else if (listening.stream().allMatch(Future::succeeded)) { startedResult.complete(); }
+            });
+        }
+    }
+
+    /**
+     * @return a new write size tuner per client when adaptive batching is configured, otherwise writes stay fixed at
+     *  maxBufferSizeInBytes
+     */
+    private Supplier<BatchSizer> getBatchSizers(JsonObject adaptiveConfig) {
+        if (adaptiveConfig == null) { return () -> null; }
+
+        int minBytes = adaptiveConfig.getInteger("minBytes", maxBufferSizeInBytes);
+        int maxBytes = adaptiveConfig.getInteger("maxBytes", BatchSizer.DEFAULT_MAX_BYTES);
+        long targetLatency = adaptiveConfig.getLong("targetLatencyMilli", BatchSizer.DEFAULT_TARGET_LATENCY_MILLI);
+        // fail on bad bounds at start up rather than when the first host is added
+        new BatchSizer(minBytes, maxBytes, targetLatency);
+        return () -> new BatchSizer(minBytes, maxBytes, targetLatency);
+    }
+
+    private static Handler<AsyncResult<Void>> completer(Future<Void> future) {
+        return result -> {
+            if (result.succeeded()) { future.complete(); }
+            else { future.fail(result.cause()); }
+        };
+    }
+
+    private int[] getPriorityWeights(JsonObject configuredWeights) {
+        int[] weights = MetricBacklog.defaultWeights();
+        if (configuredWeights == null) { return weights; }
+
+        for (String name : configuredWeights.fieldNames()) {
+            MetricPriority priority = MetricPriority.fromString(name);
+            if (priority == null) { throw new IllegalArgumentException("Unknown priority in weights: " + name); }
+            weights[priority.ordinal()] = configuredWeights.getInteger(name);
+        }
+        return weights;
     }
 
     private void outputConfig() {
         StringBuilder builder = new StringBuilder();
-        builder.append("Config[maxBufferSize=").append(maxBufferSizeInBytes).append(", address=").append(address)
-                .append(", maxTags=").append(maxTags).append(", flushInterval=").append(flushInterval)
-                .append("(ms), maxBacklog=").append(maxBacklog == Integer.MIN_VALUE ? "INFINITY" : maxBacklog);
-        if (defaultTagCount > 0) {
-            builder.append(", tags='").append(defaultTags).append("'");
-        }
-        builder.append(", hosts='").append(hosts.encode()).append("']");
-    }
-
-    private void initializeWorkers(Future<Void> startedResult) {
-        final AtomicInteger count = new AtomicInteger();
-        processor = new MetricsProcessor(workers, maxBufferSizeInBytes, vertx.eventBus());
-        for (int i = 0; i < hosts.size(); i++) {
-            JsonObject jsonHost = hosts.getJsonObject(i);
-
-            // we setup one worker dedicated to each endpoint, the same worker always rights to the same outbound socket
-            OpenTsDbClient worker = new OpenTsDbClient(jsonHost.getString("host"), jsonHost.getInteger("port"), vertx,
-              success -> {
-                if(!success) {
-                    logger.error(String.format("Failed to connect to host: %s", jsonHost.encode()));
-                    vertx.close();
-                }
+        builder.append("Config[maxBufferSize=").append(maxBufferSizeInBytes).append(", address=")
+                .append(defaultNamespace.getAddress()).append(", maxTags=").append(defaultNamespace.getMaxTags())
+                .append(", flushInterval=").append(flushInterval)
+                .append("(ms), maxBacklog=").append(maxBacklog == MetricBacklog.UNBOUNDED ? "INFINITY" : maxBacklog)
+                .append(", maxBacklogBytes=")
+                .append(maxBacklogBytes == MetricBacklog.UNBOUNDED ? "INFINITY" : maxBacklogBytes)
+                .append(", sheddingPolicy=").append(sheddingPolicy)
+                .append(", maxMetricsPerFlush=").append(maxMetricsPerFlush)
+                .append(", parallelEncodeThreshold=").append(parallelEncodeThreshold);
+        if (defaultNamespace.getDefaultTagCount() > 0) {
+            builder.append(", tags='").append(defaultNamespace.getDefaultTags()).append("'");
+        }
+        if (namespaces.size() > 0) {
+            builder.append(", namespaces=").append(namespaces.size());
+        }
+        if (replicaSets.size() > 0) {
+            builder.append(", replicas=").append(hostManagers.keySet());
+        }
+        builder.append(", hosts='").append(hostManager.getHosts().encode()).append("']");
+    }
 
-                count.incrementAndGet();
-                if(count.get() == hosts.size()) {
-                    flushTimerId = vertx.setPeriodic(flushInterval, timerId -> processor.processMetrics(metrics));
-                    outputConfig();
-                    startReporter();
-                    startedResult.complete();
-                }
+    /**
+     * Connections are made in the background, the reporter starts accepting metrics straight away and holds them in the
+     *  backlog until at least one host is up.
+     */
+    private void initializeWorkers() {
+        // with replicas the metrics are rendered once and every replica set is handed the same chunks
+        List<MetricsSender> senders = replicaSets.isEmpty() ? hostManager.getSenders()
+                : Collections.singletonList(new ReplicatingSender(replicaSets));
+
+        // large drains are rendered on the common pool so catching up after an outage scales with the cores available
+        processor = new MetricsProcessor(senders, maxBufferSizeInBytes, maxMetricsPerFlush,
+                parallelEncodeThreshold > 0 ? parallelEncodeThreshold : Integer.MAX_VALUE, ForkJoinPool.commonPool(),
+                vertx.eventBus());
+
+        flushTimerId = vertx.setPeriodic(flushInterval, timerId -> {
+            if (vertxMetrics != null) { vertxMetrics.report(System.currentTimeMillis(), metricWriter); }
+            if (overloadDrops != null) {
+                FlightRecorderEvents.commitDrops(overloadDrops, metrics.size());
+                overloadDrops = null;
+            }
+            processor.processMetrics(metrics);
+            if (replicaRetryTimerId == -1) { flushReplicas(); }
+            if (rollups != null) { sendRollups(); }
+        });
+        if (jvmCollector != null) {
+            jvmTimerId = vertx.setPeriodic(jvmIntervalMilli,
+                    timerId -> jvmCollector.collect(System.currentTimeMillis()));
+        }
+        if (hostRefreshInterval > 0) {
+            hostRefreshTimerId = vertx.setPeriodic(hostRefreshInterval,
+                    timerId -> hostManagers.values().forEach(HostManager::refresh));
+        }
+        outputConfig();
+        startReporter();
+    }
+
+    /**
+     * Hosts whose write queues are full are retried shortly rather than left until the next flush, so a replica set
+     *  catches up as fast as its hosts take data
+     */
+    private void flushReplicas() {
+        boolean backlogged = false;
+        for (ReplicaSet replicaSet : replicaSets) {
+            replicaSet.flush();
+            backlogged |= replicaSet.queuedBytes() > 0;
+        }
+
+        if (backlogged) {
+            replicaRetryTimerId = vertx.setTimer(REPLICA_RETRY_MILLI, timerId -> {
+                replicaRetryTimerId = -1;
+                flushReplicas();
             });
-            workers.add(worker);
         }
     }
 
+    /**
+     * Rollups go out as their windows close, over HTTP and alongside the raw points rather than through the backlog
+     */
+    private void sendRollups() {
+        JsonArray closed = rollups.close(System.currentTimeMillis());
+        if (closed.size() > 0) { rollupClient.send(closed); }
+    }
+
     private void startReporter() {
-        reportingTimerId = vertx.setPeriodic(FIVE_MINUTES_MILLI, timerId ->
-                workers.forEach(com.cyngn.vertx.opentsdb.client.MetricsSender::dumpStats));
+        reportingTimerId = vertx.setPeriodic(FIVE_MINUTES_MILLI, timerId -> {
+            hostManagers.values().forEach(manager -> manager.getSenders().forEach(MetricsSender::dumpStats));
+            long now = System.currentTimeMillis();
+            replicaSets.forEach(replicaSet -> logger.info("Replica set: " + replicaSet.getStatus(now).encode()));
+            if (statsdListener != null) { statsdListener.dumpStats(); }
+            if (relay != null) { relay.dumpStats(); }
+            if (rollupClient != null) {
+                rollupClient.dumpStats();
+                logger.info(String.format("Rollup series: %d drops: %s", rollups.seriesCount(),
+                        rollups.getAndResetDrops().encode()));
+            }
+            if (!relabelRules.isEmpty()) {
+                logger.info("Relabel rule hits: " + relabelRules.getAndResetHits().encode());
+            }
+        });
+        dropReportTimerId = vertx.setPeriodic(dropReportInterval, timerId -> reportDrops());
     }
 
+    /**
+     * Drops are reported in aggregate on an interval rather than per metric so an overload doesn't turn into a logging
+     *  storm.
+     */
+    private void reportDrops() {
+        long rejected = metrics.getAndResetRejected();
+        long shed = metrics.getAndResetShed();
+        JsonObject rateLimited = rateLimiter.getAndResetDrops();
+        long limited = rateLimited.getLong("dropped");
+        if (rejected == 0 && shed == 0 && limited == 0) { return; }
+
+        if (rejected > 0 || shed > 0) {
+            logger.warn(String.format("Backlog at capacity, discarded %d incoming and %d queued metrics in the last "
+                    + "%d(ms), backlog is %d metrics %d bytes", rejected, shed, dropReportInterval, metrics.size(),
+                    metrics.bytes()));
+        }
+        if (limited > 0) {
+            logger.warn(String.format("Rate limits discarded %d metrics in the last %d(ms), by metric: %s by source: "
+                    + "%s", limited, dropReportInterval, rateLimited.getJsonObject("metrics").encode(),
+                    rateLimited.getJsonObject("sources").encode()));
+        }
+        eventBus.send(ERROR_MESSAGE_ADDRESS, new JsonObject().put("error", EventBusMessage.METRICS_DROPPED.toString())
+                .put("rejected", rejected).put("shed", shed).put("rateLimited", limited));
+    }
+
+    /**
+     * Stops taking metrics straight away, then drains the backlog in slices as fast as the sockets take them and waits
+     *  on the writes in flight. All of this is bounded by stopTimeoutMilli so an undeploy finishes in a predictable
+     *  time, whatever hasn't been sent by then is spilled to the spillFile or dropped.
+     */
     @Override
-    public void stop() {
+    public void stop(Future<Void> stopFuture) {
         logger.info("Shutting down vertx-opentsdb...");
+        consumers.forEach(MessageConsumer::unregister);
+        if(statsdListener != null) { statsdListener.close(); }
+        if(relay != null) { relay.close(); }
         if(flushTimerId != -1) { vertx.cancelTimer(flushTimerId); }
+        if(replicaRetryTimerId != -1) { vertx.cancelTimer(replicaRetryTimerId); }
+        if(vertxMetrics != null) { vertxMetrics.stopLagProbes(); }
+        if(jvmTimerId != -1) { vertx.cancelTimer(jvmTimerId); }
         if(reportingTimerId != -1) { vertx.cancelTimer(reportingTimerId); }
-        if(metrics.size() > 0) { processor.processMetrics(metrics); }
-        workers.forEach(MetricsSender::close);
+        if(dropReportTimerId != -1) { vertx.cancelTimer(dropReportTimerId); }
+        if(hostRefreshTimerId != -1) { vertx.cancelTimer(hostRefreshTimerId); }
+        FlightRecorderEvents.commitDrops(overloadDrops, metrics.size());
+        overloadDrops = null;
+
+        drainOnStop(System.currentTimeMillis() + stopTimeoutMilli, stopFuture);
+    }
+
+    private void drainOnStop(long deadline, Future<Void> stopFuture) {
+        if (System.currentTimeMillis() >= deadline) {
+            finishStop(stopFuture);
+            return;
+        }
+
+        // a slice is only handed over when the sockets can take it and is sized to about one write per socket, a write
+        //  to a full queue would be discarded
+        boolean sent = false;
+        if (metrics.size() > 0 && processor.isWritable()) {
+            processor.processMetrics(metrics, Math.min(stopSliceSize, processor.getWritablePoints()));
+            sent = true;
+        }
+        replicaSets.forEach(ReplicaSet::flush);
+
+        if (metrics.size() == 0 && !processor.isEncoding() && getQueuedReplicaBytes() == 0
+                && getPendingWrites() == 0) {
+            finishStop(stopFuture);
+        } else if (sent) {
+            vertx.runOnContext(v -> drainOnStop(deadline, stopFuture));
+        } else {
+            vertx.setTimer(STOP_RETRY_MILLI, timerId -> drainOnStop(deadline, stopFuture));
+        }
+    }
+
+    private long getQueuedReplicaBytes() {
+        long queued = 0;
+        for (ReplicaSet replicaSet : replicaSets) { queued += replicaSet.queuedBytes(); }
+        return queued;
+    }
+
+    private int getPendingWrites() {
+        int pending = 0;
+        for (HostManager manager : hostManagers.values()) { pending += manager.getPendingWrites(); }
+        return pending;
+    }
+
+    private void finishStop(Future<Void> stopFuture) {
+        // a drain still being rendered would otherwise be written to closed sockets
+        PointBatch abandoned = processor.cancelEncode();
+        int pending = getPendingWrites();
+        if (pending > 0) { logger.warn(String.format("Closing with %d socket writes still pending", pending)); }
+        replicaSets.forEach(ReplicaSet::close);
+        hostManagers.values().forEach(HostManager::close);
+        if(rollupClient != null) { rollupClient.close(); }
+
+        List<PointBatch> unsent = new ArrayList<>();
+        if (abandoned != null) { unsent.add(abandoned); }
+        if (metrics.size() > 0) { unsent.add(metrics.drain(metrics.size())); }
+        int unsentCount = 0;
+        for (PointBatch batch : unsent) { unsentCount += batch.size(); }
+
+        if (unsentCount == 0) {
+            stopFuture.complete();
+            return;
+        }
+
+        if (spillFile == null) {
+            logger.warn(String.format("Stop timed out, dropping %d unsent metrics", unsentCount));
+            stopFuture.complete();
+            return;
+        }
+        spill(unsent, unsentCount, stopFuture);
+    }
+
+    /**
+     * Append the unsent metrics to the spill file as put lines, so they can be replayed to a TSD or the telnet relay
+     */
+    private void spill(List<PointBatch> unsent, int unsentCount, Future<Void> stopFuture) {
+        vertx.<Void>executeBlocking(future -> {
+            ByteBuf lines = Unpooled.buffer();
+            try (OutputStream out = Files.newOutputStream(Paths.get(spillFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                for (PointBatch batch : unsent) {
+                    for (int i = 0; i < batch.size(); i++) { batch.writeLine(i, lines); }
+                }
+                lines.readBytes(out, lines.readableBytes());
+                future.complete();
+            } catch (IOException ex) {
+                future.fail(ex);
+            } finally {
+                lines.release();
+            }
+        }, result -> {
+            if (result.succeeded()) {
+                logger.warn(String.format("Stop timed out, spilled %d unsent metrics to %s", unsentCount, spillFile));
+            } else {
+                logger.error(String.format("Failed spilling %d unsent metrics to %s, dropping them", unsentCount,
+                        spillFile), result.cause());
+            }
+            stopFuture.complete();
+        });
     }
 
     private void createMessageHandlers() {
         handlers = new HashMap<>();
         handlers.put(ADD_COMMAND, this::processMetric);
+        handlers.put(UPDATE_HOSTS_COMMAND, this::updateHosts);
+        handlers.put(QUERY_LATEST_COMMAND, this::queryLatest);
+        handlers.put(REPLICA_STATUS_COMMAND, this::replicaStatus);
     }
 
-    private void processMetric(Message<JsonObject> message) {
+    /**
+     * Answers with how far behind each replica set is
+     */
+    private void replicaStatus(Namespace namespace, Message<JsonObject> message) {
+        if (replicaSets.isEmpty()) {
+            sendError(message, "No replica sets are configured");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        JsonArray statuses = new JsonArray();
+        replicaSets.forEach(replicaSet -> statuses.add(replicaSet.getStatus(now)));
+        message.reply(new JsonObject().put("replicas", statuses));
+    }
+
+    /**
+     * Answers with the most recent points of the series matching a name, or a name prefix ending in '*', and tags
+     */
+    private void queryLatest(Namespace namespace, Message<JsonObject> message) {
+        if (latestValues == null) {
+            sendError(message, "The latestValues cache is not configured");
+            return;
+        }
+
+        JsonObject body = message.body();
+        String name = body.getString(MetricsParser.NAME_FIELD, "");
+        if (name.length() == 0) {
+            sendError(message, "You must specify a 'name' to query");
+            return;
+        }
+
+        boolean prefixMatch = name.endsWith("*");
+        if (prefixMatch) { name = name.substring(0, name.length() - 1); }
+        String prefix = namespace.getPrefix();
+        String fullName = prefix != null && prefix.length() > 0 ? prefix + "." + name : name;
+
+        JsonArray series = latestValues.query(fullName, prefixMatch, body.getJsonObject(MetricsParser.TAGS_FIELD),
+                body.getInteger("limit", DEFAULT_QUERY_LIMIT));
+        message.reply(new JsonObject().put("series", series));
+    }
+
+    private void updateHosts(Namespace namespace, Message<JsonObject> message) {
+        // the hosts are shared, so only the main address can change them
+        if (namespace != defaultNamespace) {
+            sendError(message, "Hosts can only be updated on " + defaultNamespace.getAddress());
+            return;
+        }
+
+        JsonArray newHosts = message.body().getJsonArray("hosts");
+        if (newHosts == null || newHosts.size() == 0) {
+            sendError(message, "You must specify at least one host");
+            return;
+        }
+
+        String replica = message.body().getString(REPLICA_FIELD);
+        HostManager manager = replica == null || replicaSets.isEmpty() ? hostManager : hostManagers.get(replica);
+        if (manager == null) {
+            sendError(message, "Unknown replica set: " + replica);
+            return;
+        }
+
+        try {
+            manager.update(newHosts);
+            message.reply("Ok");
+        } catch (IllegalArgumentException ex) {
+            sendError(message, ex.getMessage());
+        }
+    }
+
+    private void processMetric(Namespace namespace, Message<JsonObject> message) {
         final JsonObject tags = message.body().getJsonObject("tags");
-        if (tags != null && defaultTagCount + tags.size() > maxTags) {
+        if (tags != null && namespace.getDefaultTagCount() + tags.size() > namespace.getMaxTags()) {
             // the metric will be rejected by TSD, so don't even send it
             sendError(message, "You specified too many tags");
             return;
         }
 
-        String metricStr = metricsParser.createMetricString(message);
-        if (metricStr != null) {
-            if(maxBacklog == Integer.MIN_VALUE || metrics.size() < maxBacklog) {
-                // put the metric in the work queue
-                metrics.add(metricStr);
-                message.reply("Ok");
-            } else {
-                String errMsg = String.format("Backlog is at max defined capacity of %d, discarding metric", metrics.size());
-                logger.warn(errMsg);
-                sendError(message, errMsg);
-            }
+        MetricPriority priority = getPriority(message);
+        if (priority == null) {
+            sendError(message, "Invalid priority: " + message.body().getString(PRIORITY_FIELD) + " specified.");
+            return;
+        }
+
+        Object ingestEvent = FlightRecorderEvents.beginIngest();
+        Metric metric = namespace.getParser().parse(message);
+        if (metric == null) { return; }
+
+        // event bus reply addresses are unique per message, so producers are told apart by the source they send, only
+        //  a message that parsed costs its producer a token
+        String error;
+        if (rateLimiter.tryAcquireSource(message.body().getString(RateLimiter.SOURCE_FIELD))) {
+            error = ingest(metric, priority);
+        } else {
+            overloadDrops = FlightRecorderEvents.dropped(overloadDrops, true);
+            error = RATE_LIMITED_ERROR;
+        }
+
+        FlightRecorderEvents.commitIngest(ingestEvent, namespace.getAddress(), error);
+        if (error == null) {
+            message.reply("Ok");
+        } else {
+            // logging is aggregated in reportDrops, the reply stays per message so the sender isn't left waiting
+            sendError(message, error);
+        }
+    }
+
+    /**
+     * Queue a metric from any of the ingest paths, prioritized by the configured rules
+     *
+     * @param name the metric name as sent, before the prefix is applied
+     * @param metric the metric to queue
+     * @return null if the metric was accepted, otherwise why it was discarded
+     */
+    private String ingest(String name, Metric metric) {
+        return ingest(metric, priorityRules.getPriority(name));
+    }
+
+    private String ingest(Metric metric, MetricPriority priority) {
+        Metric relabeled = relabelRules.apply(metric);
+        // dropped by a rule, or renamed to a metric OpenTsDb has rejected, either way it isn't a failure to report
+        if (relabeled == null || (relabeled != metric && !blacklist.isEmpty()
+                && blacklist.contains(relabeled.getName()))) {
+            return null;
         }
+
+        if (!rateLimiter.tryAcquireMetric(relabeled.getName())) {
+            overloadDrops = FlightRecorderEvents.dropped(overloadDrops, true);
+            return RATE_LIMITED_ERROR;
+        }
+
+        // the latest value and rollups are still worth knowing even if the backlog can't take the point
+        if (latestValues != null) { latestValues.record(relabeled); }
+        if (rollups != null) { rollups.record(relabeled); }
+
+        // put the metric in the work queue, lower priority metrics are shed if we are at capacity
+        if (metrics.add(relabeled, priority)) { return null; }
+        overloadDrops = FlightRecorderEvents.dropped(overloadDrops, false);
+        return BACKLOG_FULL_ERROR;
+    }
+
+    private MetricPriority getPriority(Message<JsonObject> message) {
+        String priority = message.body().getString(PRIORITY_FIELD);
+        if (priority != null) { return MetricPriority.fromString(priority); }
+
+        String name = message.body().getString(MetricsParser.NAME_FIELD);
+        return name == null ? MetricPriority.NORMAL : priorityRules.getPriority(name);
     }
 
     /**
@@ -186,13 +810,17 @@ public class OpenTsDbReporter extends AbstractVerticle implements Handler<Messag
      */
     @Override
     public void handle(Message<JsonObject> message) {
+        handle(defaultNamespace, message);
+    }
+
+    private void handle(Namespace namespace, Message<JsonObject> message) {
         String action = message.body().getString("action");
 
         if (action == null ) { sendError(message, "You must specify an action"); }
 
-        Consumer<Message<JsonObject>> handler = handlers.get(action);
+        BiConsumer<Namespace, Message<JsonObject>> handler = handlers.get(action);
 
-        if ( handler != null) { handler.accept(message); }
+        if ( handler != null) { handler.accept(namespace, message); }
         else { sendError(message, "Invalid action: " + action + " specified."); }
     }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Points drained from the backlog for a single flush, self contained so it can be rendered into put commands without
+ *  touching the backlog or its dictionary.
+ */
+public class PointBatch {
+    private final Series[] series;
+    private final long[] timestamps;
+    private final long[] values;
+    private final boolean[] floats;
+    private int size;
+
+    public PointBatch(int capacity) {
+        series = new Series[capacity];
+        timestamps = new long[capacity];
+        values = new long[capacity];
+        floats = new boolean[capacity];
+    }
+
+    public void add(Series entry, long timestamp, long value, boolean isFloat) {
+        series[size] = entry;
+        timestamps[size] = timestamp;
+        values[size] = value;
+        floats[size] = isFloat;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Series getSeries(int index) {
+        return series[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public long getRawValue(int index) {
+        return values[index];
+    }
+
+    public boolean isFloat(int index) {
+        return floats[index];
+    }
+
+    /**
+     * Render a point as an OpenTsDb put command
+     *
+     * @param index the point to render
+     * @param out the buffer to write to
+     */
+    public void writeLine(int index, ByteBuf out) {
+        Series entry = series[index];
+        out.writeBytes(entry.getHead());
+        NumberFormatter.writeLong(out, timestamps[index]);
+        out.writeByte(' ');
+        NumberFormatter.writeValue(out, values[index], floats[index]);
+        out.writeBytes(entry.getTail());
+    }
+}
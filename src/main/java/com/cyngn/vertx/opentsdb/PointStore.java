@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+/**
+ * A growable ring buffer of data points held column wise in primitive arrays, points can be taken from either end so
+ *  the backlog can shed its newest or oldest data. Not thread safe, callers synchronize.
+ */
+public class PointStore {
+    private static final int INITIAL_CAPACITY = 256;
+    // once drained, stores that grew past this many times their initial size give the memory back
+    private static final int SHRINK_FACTOR = 16;
+
+    private int[] seriesIds;
+    private long[] timestamps;
+    private long[] values;
+    private boolean[] floats;
+    private int head;
+    private int size;
+
+    public PointStore() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        seriesIds = new int[capacity];
+        timestamps = new long[capacity];
+        values = new long[capacity];
+        floats = new boolean[capacity];
+        head = 0;
+    }
+
+    public void add(int seriesId, long timestamp, long value, boolean isFloat) {
+        if (size == seriesIds.length) { grow(); }
+
+        int index = (head + size) % seriesIds.length;
+        seriesIds[index] = seriesId;
+        timestamps[index] = timestamp;
+        values[index] = value;
+        floats[index] = isFloat;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = seriesIds.length * 2;
+        int[] newIds = new int[capacity];
+        long[] newTimestamps = new long[capacity];
+        long[] newValues = new long[capacity];
+        boolean[] newFloats = new boolean[capacity];
+
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % seriesIds.length;
+            newIds[i] = seriesIds[index];
+            newTimestamps[i] = timestamps[index];
+            newValues[i] = values[index];
+            newFloats[i] = floats[index];
+        }
+
+        seriesIds = newIds;
+        timestamps = newTimestamps;
+        values = newValues;
+        floats = newFloats;
+        head = 0;
+    }
+
+    /**
+     * @return the series id of the removed oldest point or -1 if empty
+     */
+    public int removeFirst() {
+        if (size == 0) { return -1; }
+        int seriesId = seriesIds[head];
+        head = (head + 1) % seriesIds.length;
+        size--;
+        return seriesId;
+    }
+
+    /**
+     * @return the series id of the removed newest point or -1 if empty
+     */
+    public int removeLast() {
+        if (size == 0) { return -1; }
+        size--;
+        return seriesIds[(head + size) % seriesIds.length];
+    }
+
+    /**
+     * Move the oldest points into a batch, releasing their references on the dictionary.
+     *
+     * @param batch the batch to fill
+     * @param maxPoints the max points to move
+     * @param dictionary the dictionary the points series ids belong to
+     * @return the number of points moved
+     */
+    public int drainTo(PointBatch batch, int maxPoints, SeriesDictionary dictionary) {
+        int count = Math.min(size, maxPoints);
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % seriesIds.length;
+            int seriesId = seriesIds[index];
+            batch.add(dictionary.get(seriesId), timestamps[index], values[index], floats[index]);
+            dictionary.release(seriesId);
+        }
+
+        head = (head + count) % seriesIds.length;
+        size -= count;
+
+        if (size == 0 && seriesIds.length >= INITIAL_CAPACITY * SHRINK_FACTOR) { allocate(INITIAL_CAPACITY); }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+}
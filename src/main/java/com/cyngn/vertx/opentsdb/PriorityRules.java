@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps metric names to the priority lane they are queued in, based on the configured list of name prefixes ie
+ *
+ *  [{"prefix" : "api.slo.", "priority" : "critical"}, {"prefix" : "debug.", "priority" : "bulk"}]
+ *
+ * The first matching prefix wins, anything not matched is NORMAL.
+ */
+public class PriorityRules {
+
+    private final List<String> prefixes;
+    private final List<MetricPriority> priorities;
+
+    public PriorityRules(JsonArray rules) {
+        prefixes = new ArrayList<>();
+        priorities = new ArrayList<>();
+
+        if (rules == null) { return; }
+
+        for (int i = 0; i < rules.size(); i++) {
+            JsonObject rule = rules.getJsonObject(i);
+            MetricPriority priority = MetricPriority.fromString(rule.getString("priority"));
+            String prefix = rule.getString("prefix");
+            if (priority == null || prefix == null) {
+                throw new IllegalArgumentException("Invalid priority rule: " + rule.encode());
+            }
+            prefixes.add(prefix);
+            priorities.add(priority);
+        }
+    }
+
+    /**
+     * @param metricName the name of the metric being added
+     * @return the priority for the metric
+     */
+    public MetricPriority getPriority(String metricName) {
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (metricName.startsWith(prefixes.get(i))) { return priorities.get(i); }
+        }
+        return MetricPriority.NORMAL;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Validates the arguments of a telnet put command straight off the connection buffer, ie
+ *
+ *  put sys.cpu.user 1356998400 42.5 host=webserver01 cpu=0
+ *
+ * The checks mirror what a TSD does with the line, so bad data is rejected before it takes up space in the backlog.
+ *  Timestamps in seconds are converted to milliseconds to match the rest of the module.
+ *
+ * Not thread safe.
+ */
+public class PutLineParser {
+    private static final long MAX_SECONDS = 9999999999L;
+
+    private final int maxTags;
+    private final MetricBlacklist blacklist;
+
+    /**
+     * @param maxTags the max number of tags a line can have
+     * @param blacklist metrics OpenTsDb has rejected, null for none
+     */
+    public PutLineParser(int maxTags, MetricBlacklist blacklist) {
+        this.maxTags = maxTags;
+        this.blacklist = blacklist;
+    }
+
+    /**
+     * @param buffer the buffer holding the line
+     * @param start the index of the first byte after 'put '
+     * @param end the index after the last byte of the line
+     * @param sink where the parsed metric goes
+     * @return null if the sink queued the metric, otherwise why it was rejected, by the parser or by the sink
+     */
+    public String parse(Buffer buffer, int start, int end, MetricSink sink) {
+        int nameEnd = indexOf(buffer, ' ', start, end);
+        int timestampEnd = indexOf(buffer, ' ', nameEnd + 1, end);
+        int valueEnd = indexOf(buffer, ' ', timestampEnd + 1, end);
+        if (nameEnd == -1 || timestampEnd == -1 || valueEnd == -1) {
+            return "not enough arguments (need at least 4, got " + countArguments(buffer, start, end) + ")";
+        }
+
+        if (!isValidName(buffer, start, nameEnd)) { return "invalid metric name"; }
+
+        long timestamp = parseTimestamp(buffer, nameEnd + 1, timestampEnd);
+        if (timestamp <= 0) { return "invalid timestamp"; }
+
+        String tagError = validateTags(buffer, valueEnd + 1, end);
+        if (tagError != null) { return tagError; }
+
+        String name = buffer.getString(start, nameEnd);
+        if (blacklist != null && !blacklist.isEmpty() && blacklist.contains(name)) {
+            return "metric " + name + " was rejected by OpenTsDb";
+        }
+
+        Metric metric = Metric.parse(buffer, timestampEnd + 1, valueEnd, name, buffer.getString(valueEnd + 1, end),
+                timestamp);
+        if (metric == null) { return "invalid value: " + buffer.getString(timestampEnd + 1, valueEnd); }
+
+        return sink.accept(name, metric);
+    }
+
+    private static int countArguments(Buffer buffer, int start, int end) {
+        int arguments = start < end ? 1 : 0;
+        for (int i = start; i < end; i++) {
+            if (buffer.getByte(i) == ' ') { arguments++; }
+        }
+        return arguments;
+    }
+
+    /**
+     * @return the timestamp in milliseconds or -1 if it is invalid
+     */
+    private static long parseTimestamp(Buffer buffer, int start, int end) {
+        // seconds or milliseconds since the epoch
+        if (end - start != 10 && end - start != 13) { return -1; }
+
+        long timestamp = 0;
+        for (int i = start; i < end; i++) {
+            byte current = buffer.getByte(i);
+            if (current < '0' || current > '9') { return -1; }
+            timestamp = timestamp * 10 + (current - '0');
+        }
+        return timestamp <= MAX_SECONDS ? timestamp * 1000 : timestamp;
+    }
+
+    /**
+     * Tags must be single space separated 'name=value' pairs
+     *
+     * @return null if the tags are valid, otherwise why they aren't
+     */
+    private String validateTags(Buffer buffer, int start, int end) {
+        int count = 0;
+        int tagStart = start;
+        while (tagStart < end) {
+            int tagEnd = indexOf(buffer, ' ', tagStart, end);
+            if (tagEnd == -1) { tagEnd = end; }
+
+            int separator = indexOf(buffer, '=', tagStart, tagEnd);
+            if (separator == -1 || !isValidName(buffer, tagStart, separator)
+                    || !isValidName(buffer, separator + 1, tagEnd)) {
+                return "invalid tag: " + buffer.getString(tagStart, tagEnd);
+            }
+            if (++count > maxTags) { return "too many tags, max is " + maxTags; }
+            tagStart = tagEnd + 1;
+        }
+        return count == 0 ? "need at least one tag" : null;
+    }
+
+    /**
+     * Names and tags are limited to letters, numbers, '-', '_', '.' and '/', shared with the statsd parser
+     */
+    static boolean isValidName(Buffer buffer, int start, int end) {
+        if (start >= end) { return false; }
+        for (int i = start; i < end; i++) {
+            byte current = buffer.getByte(i);
+            // bytes of multi-byte UTF-8 characters are negative, OpenTsDb allows any unicode letter
+            boolean valid = current < 0 || (current >= 'a' && current <= 'z') || (current >= 'A' && current <= 'Z')
+                    || (current >= '0' && current <= '9') || current == '-' || current == '_' || current == '.'
+                    || current == '/';
+            if (!valid) { return false; }
+        }
+        return true;
+    }
+
+    private static int indexOf(Buffer buffer, char target, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.getByte(i) == target) { return i; }
+        }
+        return -1;
+    }
+}
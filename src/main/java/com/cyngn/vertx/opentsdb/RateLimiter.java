@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limits on how fast metrics are accepted, per metric name pattern and per producer, configured ie
+ *
+ *  {"metrics" : [{"name" : "api.debug.*", "pointsPerSecond" : 100, "burst" : 500}],
+ *   "sources" : {"pointsPerSecond" : 1000, "burst" : 5000, "maxSources" : 10000, "idleExpiryMilli" : 600000}}
+ *
+ * Metric names ending in '*' match by prefix, otherwise they must match exactly, the first matching rule's bucket is
+ *  used and metrics matching no rule aren't limited. Every producer gets its own bucket keyed by the source it
+ *  sends, producers that don't send one share the {@link #UNATTRIBUTED} bucket. Source buckets are held in a bounded
+ *  cache, idle or least recently used sources are evicted so any number of producers fit in a fixed amount of memory.
+ *
+ * Buckets are taken from with a compare and set, so the limiter can be shared across threads without locking.
+ */
+public class RateLimiter {
+    public static final String SOURCE_FIELD = "source";
+    public static final String UNATTRIBUTED = "unattributed";
+    public static final int DEFAULT_MAX_SOURCES = 10000;
+    public static final long DEFAULT_SOURCE_IDLE_MILLI = 1000 * 60 * 10;
+    private static final int MAX_REPORTED_SOURCES = 10;
+
+    private final List<String> names;
+    private final List<Boolean> prefixes;
+    private final List<TokenBucket> nameBuckets;
+    private final Cache<String, TokenBucket> sourceBuckets;
+    private final double sourceRate;
+    private final double sourceBurst;
+    private final AtomicLong sourceDropped;
+
+    /**
+     * Tracks when the bucket runs dry rather than the tokens in it, a bucket that empties at or before now is full,
+     *  every point taken pushes the time out by one token's worth and the bucket refuses points that would push it
+     *  more than the burst past now. That keeps the whole state in a single long.
+     */
+    static class TokenBucket {
+        private final long nanosPerToken;
+        private final long burstNanos;
+        private final AtomicLong emptyAt;
+        private final AtomicLong dropped;
+
+        TokenBucket(double pointsPerSecond, double burst, long now) {
+            nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / pointsPerSecond));
+            burstNanos = (long) (burst * nanosPerToken);
+            emptyAt = new AtomicLong(now);
+            dropped = new AtomicLong();
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = emptyAt.get();
+                long next = (current - now > 0 ? current : now) + nanosPerToken;
+                if (next - now > burstNanos) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (emptyAt.compareAndSet(current, next)) { return true; }
+            }
+        }
+    }
+
+    /**
+     * @param config the rate limit config, null for no limits
+     * @throws IllegalArgumentException if a limit is invalid
+     */
+    public RateLimiter(JsonObject config) {
+        this(config, System.nanoTime());
+    }
+
+    RateLimiter(JsonObject config, long now) {
+        if (config == null) { config = new JsonObject(); }
+        names = new ArrayList<>();
+        prefixes = new ArrayList<>();
+        nameBuckets = new ArrayList<>();
+        sourceDropped = new AtomicLong();
+
+        JsonArray metricLimits = config.getJsonArray("metrics", new JsonArray());
+        for (int i = 0; i < metricLimits.size(); i++) {
+            Object value = metricLimits.getValue(i);
+            if (!(value instanceof JsonObject)) { throw new IllegalArgumentException("Invalid rate limit: " + value); }
+
+            JsonObject limit = (JsonObject) value;
+            String name = limit.getString("name");
+            if (name == null || name.length() == 0) { throw invalid(limit); }
+
+            boolean prefix = name.endsWith("*");
+            names.add(prefix ? name.substring(0, name.length() - 1) : name);
+            prefixes.add(prefix);
+            nameBuckets.add(new TokenBucket(getRate(limit), getBurst(limit), now));
+        }
+
+        JsonObject sourceLimit = config.getJsonObject("sources");
+        if (sourceLimit == null) {
+            sourceRate = 0;
+            sourceBurst = 0;
+            sourceBuckets = null;
+        } else {
+            sourceRate = getRate(sourceLimit);
+            sourceBurst = getBurst(sourceLimit);
+            sourceBuckets = CacheBuilder.newBuilder()
+                    .maximumSize(sourceLimit.getInteger("maxSources", DEFAULT_MAX_SOURCES))
+                    .expireAfterAccess(sourceLimit.getLong("idleExpiryMilli", DEFAULT_SOURCE_IDLE_MILLI),
+                            TimeUnit.MILLISECONDS)
+                    .build();
+        }
+    }
+
+    private static double getRate(JsonObject limit) {
+        Object rate = limit.getValue("pointsPerSecond");
+        if (!(rate instanceof Number) || ((Number) rate).doubleValue() <= 0) { throw invalid(limit); }
+        return ((Number) rate).doubleValue();
+    }
+
+    private static double getBurst(JsonObject limit) {
+        Object burst = limit.getValue("burst");
+        if (burst == null) { return Math.max(1, getRate(limit)); }
+        if (!(burst instanceof Number) || ((Number) burst).doubleValue() < 1) { throw invalid(limit); }
+        return ((Number) burst).doubleValue();
+    }
+
+    private static IllegalArgumentException invalid(JsonObject limit) {
+        return new IllegalArgumentException("Invalid rate limit: " + limit.encode());
+    }
+
+    /**
+     * @param name the full metric name
+     * @return false if the metric is over its limit and should be dropped
+     */
+    public boolean tryAcquireMetric(String name) {
+        return tryAcquireMetric(name, System.nanoTime());
+    }
+
+    boolean tryAcquireMetric(String name, long now) {
+        for (int i = 0; i < names.size(); i++) {
+            String limited = names.get(i);
+            if (prefixes.get(i) ? name.startsWith(limited) : name.equals(limited)) {
+                return nameBuckets.get(i).tryAcquire(now);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param source the producer sending the metric, null if it didn't say
+     * @return false if the producer is over its limit and the metric should be dropped
+     */
+    public boolean tryAcquireSource(String source) {
+        return tryAcquireSource(source, System.nanoTime());
+    }
+
+    boolean tryAcquireSource(String source, long now) {
+        if (sourceBuckets == null) { return true; }
+
+        String key = source == null ? UNATTRIBUTED : source;
+        TokenBucket bucket = sourceBuckets.getIfPresent(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(sourceRate, sourceBurst, now);
+            bucket = sourceBuckets.asMap().putIfAbsent(key, created);
+            if (bucket == null) { bucket = created; }
+        }
+
+        if (bucket.tryAcquire(now)) { return true; }
+        sourceDropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the number of metrics dropped since the last call, in total, by name rule and for the sources dropping
+     *  the most ie {"dropped" : 120, "metrics" : {"api.debug.*" : 100}, "sources" : {"batch-job" : 20}}
+     */
+    public JsonObject getAndResetDrops() {
+        long total = 0;
+        JsonObject metrics = new JsonObject();
+        for (int i = 0; i < nameBuckets.size(); i++) {
+            long dropped = nameBuckets.get(i).dropped.getAndSet(0);
+            if (dropped > 0) {
+                metrics.put(prefixes.get(i) ? names.get(i) + "*" : names.get(i), dropped);
+                total += dropped;
+            }
+        }
+
+        JsonObject sources = new JsonObject();
+        if (sourceBuckets != null) {
+            // evicted buckets take their own counts with them, the total is kept separately
+            total += sourceDropped.getAndSet(0);
+            List<Map.Entry<String, Long>> offenders = new ArrayList<>();
+            for (Map.Entry<String, TokenBucket> entry : sourceBuckets.asMap().entrySet()) {
+                long dropped = entry.getValue().dropped.getAndSet(0);
+                if (dropped > 0) { offenders.add(new AbstractMap.SimpleEntry<>(entry.getKey(), dropped)); }
+            }
+            offenders.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (int i = 0; i < offenders.size() && i < MAX_REPORTED_SOURCES; i++) {
+                sources.put(offenders.get(i).getKey(), offenders.get(i).getValue());
+            }
+        }
+
+        return new JsonObject().put("dropped", total).put("metrics", metrics).put("sources", sources);
+    }
+
+    /**
+     * @return the number of sources currently being tracked
+     */
+    public long sourceCount() {
+        return sourceBuckets == null ? 0 : sourceBuckets.size();
+    }
+}
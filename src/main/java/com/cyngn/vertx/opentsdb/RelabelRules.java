@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * Drops, keeps and renames metrics and strips or rewrites their tags, based on the configured list of rules ie
+ *
+ *  [{"action" : "drop", "name" : "api.debug.*"},
+ *   {"action" : "keep", "name" : "api.*"},
+ *   {"action" : "rename", "name" : "legacy.api.*", "to" : "api."},
+ *   {"action" : "tag_drop", "tag" : "request_id"},
+ *   {"action" : "tag_rewrite", "tag" : "host", "value" : "web01", "to" : "web"}]
+ *
+ * Names ending in '*' match by prefix, otherwise they must match exactly. Name rules are compiled into a trie so a
+ *  name is matched in one pass whatever the number of rules, the most specific matching rule wins and an exact
+ *  match beats a prefix. Once there is a keep rule anything not matched by a keep or rename rule is dropped.
+ *
+ * Tag rules are looked up by hash straight from the tag string, a tag_rewrite without a value rewrites every value.
+ *  Metrics that no rule touches are passed through as is without allocating.
+ *
+ * Not thread safe.
+ */
+public class RelabelRules {
+    private static final int DROP = 0;
+    private static final int KEEP = 1;
+    private static final int RENAME = 2;
+    private static final int TAG_DROP = 3;
+    private static final int TAG_REWRITE = 4;
+    private static final String[] ACTIONS = {"drop", "keep", "rename", "tag_drop", "tag_rewrite"};
+
+    private final JsonArray rules;
+    private final long[] hits;
+    private final TrieNode names;
+    private final TagTable tagKeys;
+    private final TagTable tagValues;
+    private final boolean hasKeepRules;
+    private final boolean isEmpty;
+
+    /**
+     * A name rule, the index of the rule and for renames what the matched name or prefix becomes
+     */
+    private static class NameRule {
+        private final int index;
+        private final int action;
+        private final String to;
+        private final int prefixLength;
+
+        private NameRule(int index, int action, String to, int prefixLength) {
+            this.index = index;
+            this.action = action;
+            this.to = to;
+            this.prefixLength = prefixLength;
+        }
+    }
+
+    private static class TrieNode {
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private NameRule exact;
+        private NameRule prefix;
+
+        private TrieNode child(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : children[index];
+        }
+
+        private TrieNode getOrAddChild(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) { return children[index]; }
+
+            int insertAt = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            TrieNode[] newChildren = new TrieNode[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = key;
+            newChildren[insertAt] = new TrieNode();
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, keys.length - insertAt);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+    }
+
+    /**
+     * Open addressing hash table from a key to the rule for it, probed with a region of the tag string so looking a
+     *  tag up doesn't need a substring
+     */
+    private static class TagTable {
+        private final String[] keys;
+        private final int[] ruleIndexes;
+        private final String[] values;
+        private final int mask;
+
+        private TagTable(int capacity) {
+            int size = Integer.highestOneBit(Math.max(1, capacity) * 2) * 2;
+            keys = new String[size];
+            ruleIndexes = new int[size];
+            values = new String[size];
+            mask = size - 1;
+        }
+
+        private void put(String key, int ruleIndex, String value) {
+            int slot = hash(key, 0, key.length()) & mask;
+            while (keys[slot] != null && !keys[slot].equals(key)) { slot = (slot + 1) & mask; }
+            if (keys[slot] != null) { return; }
+            keys[slot] = key;
+            ruleIndexes[slot] = ruleIndex;
+            values[slot] = value;
+        }
+
+        /**
+         * @return the slot holding the key or -1
+         */
+        private int find(String source, int start, int end) {
+            int slot = hash(source, start, end) & mask;
+            while (keys[slot] != null) {
+                String key = keys[slot];
+                if (key.length() == end - start && source.regionMatches(start, key, 0, key.length())) { return slot; }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int hash(String source, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) { hash = 31 * hash + source.charAt(i); }
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * @param rules the configured rules, null for none
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public RelabelRules(JsonArray rules) {
+        this.rules = rules == null ? new JsonArray() : rules.copy();
+        hits = new long[this.rules.size()];
+        names = new TrieNode();
+        tagKeys = new TagTable(this.rules.size());
+        tagValues = new TagTable(this.rules.size());
+
+        boolean keep = false;
+        for (int i = 0; i < this.rules.size(); i++) {
+            Object value = this.rules.getValue(i);
+            if (!(value instanceof JsonObject)) { throw new IllegalArgumentException("Invalid relabel rule: " + value); }
+
+            JsonObject rule = (JsonObject) value;
+            int action = Arrays.asList(ACTIONS).indexOf(rule.getString("action", ""));
+            String name = rule.getString("name");
+            String tag = rule.getString("tag");
+            String to = rule.getString("to");
+
+            if (action == DROP || action == KEEP || (action == RENAME && to != null)) {
+                if (name == null || name.length() == 0 || "*".equals(name)) { throw invalid(rule); }
+                addNameRule(name, i, action, to);
+                keep |= action == KEEP;
+            } else if (action == TAG_DROP && tag != null) {
+                tagKeys.put(tag, i, null);
+            } else if (action == TAG_REWRITE && tag != null && to != null) {
+                String tagValue = rule.getString("value");
+                if (tagValue == null) { tagKeys.put(tag, i, to); }
+                else { tagValues.put(tag + "=" + tagValue, i, to); }
+            } else {
+                throw invalid(rule);
+            }
+        }
+        hasKeepRules = keep;
+        isEmpty = this.rules.size() == 0;
+    }
+
+    private static IllegalArgumentException invalid(JsonObject rule) {
+        return new IllegalArgumentException("Invalid relabel rule: " + rule.encode());
+    }
+
+    private void addNameRule(String name, int index, int action, String to) {
+        boolean prefix = name.endsWith("*");
+        int length = prefix ? name.length() - 1 : name.length();
+        NameRule rule = new NameRule(index, action, to, prefix ? length : -1);
+
+        TrieNode node = names;
+        for (int i = 0; i < length; i++) { node = node.getOrAddChild(name.charAt(i)); }
+
+        // the first rule for a name wins
+        if (prefix && node.prefix == null) { node.prefix = rule; }
+        else if (!prefix && node.exact == null) { node.exact = rule; }
+    }
+
+    /**
+     * @param metric the metric to relabel
+     * @return the metric, a relabeled copy of it or null if it should be dropped
+     */
+    public Metric apply(Metric metric) {
+        if (isEmpty) { return metric; }
+
+        String name = metric.getName();
+        NameRule rule = match(name);
+        if (rule != null) { hits[rule.index]++; }
+
+        if ((rule == null && hasKeepRules) || (rule != null && rule.action == DROP)) { return null; }
+        if (rule != null && rule.action == RENAME) {
+            name = rule.prefixLength == -1 ? rule.to : rule.to + name.substring(rule.prefixLength);
+        }
+
+        String tags = relabelTags(metric.getTags());
+        if (name == metric.getName() && tags == metric.getTags()) { return metric; }
+        // OpenTsDb would reject a metric left with no tags
+        if (tags.length() == 0) { return null; }
+        return metric.withNameAndTags(name, tags);
+    }
+
+    private NameRule match(String name) {
+        TrieNode node = names;
+        NameRule best = node.prefix;
+        for (int i = 0; i < name.length() && node != null; i++) {
+            node = node.child(name.charAt(i));
+            if (node != null && node.prefix != null) { best = node.prefix; }
+        }
+        return node != null && node.exact != null ? node.exact : best;
+    }
+
+    /**
+     * @return the tags, or a new tag string if a rule changed them
+     */
+    private String relabelTags(String tags) {
+        StringBuilder relabeled = null;
+        int start = 0;
+        while (start < tags.length()) {
+            int end = tags.indexOf(' ', start);
+            if (end == -1) { end = tags.length(); }
+            int separator = tags.indexOf('=', start);
+            if (separator == -1 || separator > end) { separator = end; }
+
+            String replacement = null;
+            boolean drop = false;
+            int slot = tagKeys.find(tags, start, separator);
+            if (slot != -1) {
+                hits[tagKeys.ruleIndexes[slot]]++;
+                replacement = tagKeys.values[slot];
+                drop = replacement == null;
+            } else if ((slot = tagValues.find(tags, start, end)) != -1) {
+                hits[tagValues.ruleIndexes[slot]]++;
+                replacement = tagValues.values[slot];
+            }
+
+            if (relabeled == null && (drop || replacement != null)) {
+                relabeled = new StringBuilder(tags.length()).append(tags, 0, start);
+            }
+            if (relabeled != null && !drop) {
+                if (relabeled.length() > 0 && relabeled.charAt(relabeled.length() - 1) != ' ') { relabeled.append(' '); }
+                if (replacement == null) { relabeled.append(tags, start, end); }
+                else { relabeled.append(tags, start, separator).append('=').append(replacement); }
+            }
+            start = end + 1;
+        }
+
+        if (relabeled == null) { return tags; }
+        int length = relabeled.length();
+        return length > 0 && relabeled.charAt(length - 1) == ' ' ? relabeled.substring(0, length - 1)
+                : relabeled.toString();
+    }
+
+    /**
+     * @return every rule with the number of metrics or tags it has matched since the last call ie
+     *  [{"action" : "drop", "name" : "api.debug.*", "hits" : 20}]
+     */
+    public JsonArray getAndResetHits() {
+        JsonArray stats = new JsonArray();
+        for (int i = 0; i < hits.length; i++) {
+            stats.add(rules.getJsonObject(i).copy().put("hits", hits[i]));
+            hits[i] = 0;
+        }
+        return stats;
+    }
+
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+}
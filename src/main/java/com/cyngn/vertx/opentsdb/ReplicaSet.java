@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A group of hosts that each get a full copy of the metrics, ie a primary and a DR cluster, with its own backlog of
+ *  encoded chunks waiting to be written.
+ *
+ * Chunks are shared between the replica sets rather than copied, each set holds its own reference and reader index
+ *  on the same pooled buffer. Chunks are written round robin across the set's hosts, only to hosts whose write queue
+ *  has room, so a slow cluster builds up its own backlog instead of holding back the others. Once the backlog is at
+ *  its byte budget the policy decides whether the incoming or the oldest chunks are dropped.
+ *
+ * Not thread safe, chunks are offered and flushed from the reporter's context.
+ */
+public class ReplicaSet {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaSet.class);
+    public static final long DEFAULT_MAX_BACKLOG_BYTES = 64 * 1024 * 1024;
+
+    private final String name;
+    private final List<MetricsSender> senders;
+    private final long maxBacklogBytes;
+    private final SheddingPolicy policy;
+    private final ArrayDeque<QueuedChunk> chunks;
+    private long queuedBytes;
+    private long chunksWritten;
+    private long dropped;
+    private long nextSender;
+
+    private static class QueuedChunk {
+        private final ByteBuf data;
+        private final long queuedAt;
+
+        private QueuedChunk(ByteBuf data, long queuedAt) {
+            this.data = data;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * @param name the name of the set
+     * @param senders the live list of the set's senders
+     * @param maxBacklogBytes the max bytes of chunks to hold while the hosts catch up
+     * @param policy which chunks to drop once the backlog is full, DROP_NEWEST or DROP_OLDEST
+     */
+    public ReplicaSet(String name, List<MetricsSender> senders, long maxBacklogBytes, SheddingPolicy policy) {
+        if (policy == SheddingPolicy.SAMPLE) {
+            throw new IllegalArgumentException("Replica set: " + name + " can only use drop_newest or drop_oldest");
+        }
+        this.name = name;
+        this.senders = senders;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.policy = policy;
+        chunks = new ArrayDeque<>();
+    }
+
+    /**
+     * Queue a chunk for the set, the set takes ownership of the reference and releases it once written or dropped
+     *
+     * @param chunk the chunk to queue
+     * @param now the current time in ms
+     * @return false if the chunk was dropped
+     */
+    public boolean offer(ByteBuf chunk, long now) {
+        int length = chunk.readableBytes();
+        if (queuedBytes + length > maxBacklogBytes) {
+            if (policy == SheddingPolicy.DROP_NEWEST || length > maxBacklogBytes) {
+                chunk.release();
+                dropped++;
+                return false;
+            }
+            while (queuedBytes + length > maxBacklogBytes) { release(chunks.poll()); }
+        }
+
+        chunks.add(new QueuedChunk(chunk, now));
+        queuedBytes += length;
+        return true;
+    }
+
+    private void release(QueuedChunk chunk) {
+        queuedBytes -= chunk.data.readableBytes();
+        chunk.data.release();
+        dropped++;
+    }
+
+    /**
+     * Write as many queued chunks as the set's hosts will currently take, chunk i goes to host i mod hosts
+     */
+    public void flush() {
+        while (!chunks.isEmpty()) {
+            MetricsSender sender = nextWritableSender();
+            if (sender == null) { return; }
+
+            QueuedChunk chunk = chunks.poll();
+            queuedBytes -= chunk.data.readableBytes();
+            // the sender owns the reference from here on and releases it once written
+            if (sender.write(chunk.data)) { chunksWritten++; }
+            else { dropped++; }
+        }
+    }
+
+    private MetricsSender nextWritableSender() {
+        int size = senders.size();
+        for (int i = 0; i < size; i++) {
+            MetricsSender sender = senders.get((int) (nextSender++ % size));
+            if (sender.isWritable()) { return sender; }
+        }
+        return null;
+    }
+
+    /**
+     * @param now the current time in ms
+     * @return how long the oldest queued chunk has been waiting in ms, 0 when the set is caught up
+     */
+    public long getLagMilli(long now) {
+        QueuedChunk oldest = chunks.peek();
+        return oldest == null ? 0 : Math.max(0, now - oldest.queuedAt);
+    }
+
+    /**
+     * @param now the current time in ms
+     * @return the set's lag and counters ie
+     *  {"name" : "dr", "lagMilli" : 1200, "queuedChunks" : 40, "queuedBytes" : 60000, "chunksWritten" : 800,
+     *   "dropped" : 0}
+     */
+    public JsonObject getStatus(long now) {
+        return new JsonObject().put("name", name).put("lagMilli", getLagMilli(now)).put("queuedChunks", chunks.size())
+                .put("queuedBytes", queuedBytes).put("chunksWritten", chunksWritten).put("dropped", dropped);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Release anything still queued, used on shutdown
+     */
+    public void close() {
+        if (!chunks.isEmpty()) {
+            logger.warn(String.format("Replica set: %s closing with %d chunks %d bytes unsent", name, chunks.size(),
+                    queuedBytes));
+        }
+        while (!chunks.isEmpty()) { chunks.poll().data.release(); }
+        queuedBytes = 0;
+    }
+}
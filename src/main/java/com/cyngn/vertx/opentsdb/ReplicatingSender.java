@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.List;
+
+/**
+ * Hands every chunk the processor renders to each of the replica sets, so the metrics are encoded once whatever the
+ *  number of clusters they are written to.
+ *
+ * It is always connected, each replica set holds on to its chunks until its own hosts can take them.
+ */
+public class ReplicatingSender implements MetricsSender {
+    private final List<ReplicaSet> replicaSets;
+
+    public ReplicatingSender(List<ReplicaSet> replicaSets) {
+        this.replicaSets = replicaSets;
+    }
+
+    @Override
+    public boolean write(Buffer data) {
+        return write(Unpooled.copiedBuffer(data.getByteBuf()));
+    }
+
+    /**
+     * Each set gets its own reference and reader index onto the chunk rather than a copy of it
+     *
+     * @return false if every replica set dropped the chunk
+     */
+    @Override
+    public boolean write(ByteBuf data) {
+        long now = System.currentTimeMillis();
+        boolean accepted = false;
+        try {
+            for (ReplicaSet replicaSet : replicaSets) {
+                accepted |= replicaSet.offer(data.duplicate().retain(), now);
+            }
+        } finally {
+            data.release();
+        }
+        return accepted;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public void dumpStats() { }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rolls every series that passes through the reporter up into its sum, count, min and max over fixed intervals, ie
+ *  1m and 1h, so long range queries read a handful of pre-aggregated points instead of downsampling the raw ones.
+ *
+ * Each interval keeps the windows that are still open, keyed by their start and then by series name and tags like
+ *  the latest value cache. A window closes once the clock passes its end plus the grace period and is returned in the
+ *  OpenTsDb rollup format, points for a window that has already closed are dropped as late. The number of series
+ *  aggregated per interval is capped, points for a new series over the cap are dropped. Recording a point for a series
+ *  already in an open window doesn't allocate.
+ *
+ * Not thread safe.
+ */
+public class Rollups {
+    public static final int DEFAULT_MAX_SERIES = 100000;
+    public static final long DEFAULT_GRACE_MILLI = 5000;
+    public static final String[] AGGREGATORS = {"SUM", "COUNT", "MIN", "MAX"};
+
+    private final Resolution[] resolutions;
+    private final int maxSeries;
+    private final long graceMilli;
+    private long late;
+    private long overflow;
+
+    private static class Resolution {
+        private final String interval;
+        private final long milli;
+        private final TreeMap<Long, Map<String, Map<String, Aggregate>>> windows = new TreeMap<>();
+        // windows starting before this have been closed
+        private long closedBefore = Long.MIN_VALUE;
+        private long lastStart = Long.MIN_VALUE;
+        private Map<String, Map<String, Aggregate>> lastWindow;
+        private int series;
+
+        private Resolution(String interval, long milli) {
+            this.interval = interval;
+            this.milli = milli;
+        }
+    }
+
+    private static class Aggregate {
+        private long count;
+        private long longSum;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private boolean isFloat;
+
+        private void add(Metric metric) {
+            double value = metric.getValue();
+            count++;
+            // integer sums stay exact until a float point turns up
+            if (!metric.isFloat()) { longSum += metric.getRawValue(); }
+            sum += value;
+            isFloat |= metric.isFloat();
+            if (value < min) { min = value; }
+            if (value > max) { max = value; }
+        }
+
+        private Object value(int aggregator) {
+            switch (aggregator) {
+                case 0: return isFloat ? (Object) sum : (Object) longSum;
+                case 1: return count;
+                case 2: return isFloat ? (Object) min : (Object) (long) min;
+                default: return isFloat ? (Object) max : (Object) (long) max;
+            }
+        }
+    }
+
+    /**
+     * @param intervals the intervals to roll up over ie ["1m", "1h"], in s, m, h or d
+     * @param maxSeries the max series to aggregate per interval
+     * @param graceMilli how long after a window ends to wait on late points before closing it
+     * @throws IllegalArgumentException if an interval is invalid
+     */
+    public Rollups(JsonArray intervals, int maxSeries, long graceMilli) {
+        if (intervals.size() == 0) { throw new IllegalArgumentException("No rollup intervals configured"); }
+        resolutions = new Resolution[intervals.size()];
+        for (int i = 0; i < intervals.size(); i++) {
+            String interval = String.valueOf(intervals.getValue(i));
+            resolutions[i] = new Resolution(interval, parseInterval(interval));
+        }
+        this.maxSeries = maxSeries;
+        this.graceMilli = graceMilli;
+    }
+
+    public static JsonArray defaultIntervals() {
+        return new JsonArray().add("1m").add("1h");
+    }
+
+    /**
+     * @param interval a count and unit ie 1m
+     * @return the interval in milliseconds
+     */
+    static long parseInterval(String interval) {
+        long unit;
+        switch (interval.isEmpty() ? ' ' : interval.charAt(interval.length() - 1)) {
+            case 's': unit = 1000; break;
+            case 'm': unit = 60 * 1000; break;
+            case 'h': unit = 60 * 60 * 1000; break;
+            case 'd': unit = 24 * 60 * 60 * 1000; break;
+            default: throw new IllegalArgumentException("Invalid rollup interval: " + interval);
+        }
+
+        try {
+            long count = Long.parseLong(interval.substring(0, interval.length() - 1));
+            if (count <= 0) { throw new IllegalArgumentException("Invalid rollup interval: " + interval); }
+            return count * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rollup interval: " + interval);
+        }
+    }
+
+    public void record(Metric metric) {
+        for (Resolution resolution : resolutions) {
+            long start = metric.getTimestamp() - Math.floorMod(metric.getTimestamp(), resolution.milli);
+            if (start < resolution.closedBefore) {
+                late++;
+                continue;
+            }
+
+            Map<String, Map<String, Aggregate>> window = resolution.lastWindow;
+            if (start != resolution.lastStart) {
+                window = resolution.windows.get(start);
+                if (window == null) {
+                    window = new HashMap<>();
+                    resolution.windows.put(start, window);
+                }
+                resolution.lastStart = start;
+                resolution.lastWindow = window;
+            }
+
+            Map<String, Aggregate> byTags = window.get(metric.getName());
+            Aggregate aggregate = byTags == null ? null : byTags.get(metric.getTags());
+            if (aggregate == null) {
+                if (resolution.series >= maxSeries) {
+                    overflow++;
+                    continue;
+                }
+                if (byTags == null) {
+                    byTags = new HashMap<>();
+                    window.put(metric.getName(), byTags);
+                }
+                aggregate = new Aggregate();
+                byTags.put(metric.getTags(), aggregate);
+                resolution.series++;
+            }
+            aggregate.add(metric);
+        }
+    }
+
+    /**
+     * Close every window whose end plus the grace period has passed
+     *
+     * @param now the current time in milliseconds
+     * @return the closed windows as OpenTsDb rollup points, one per aggregator per series ie
+     *  {"metric" : "api.time", "timestamp" : 1431000000, "value" : 150, "tags" : {"host" : "a"}, "interval" : "1m",
+     *  "aggregator" : "SUM"}
+     */
+    public JsonArray close(long now) {
+        JsonArray points = new JsonArray();
+        for (Resolution resolution : resolutions) {
+            Iterator<Map.Entry<Long, Map<String, Map<String, Aggregate>>>> windows =
+                    resolution.windows.entrySet().iterator();
+            while (windows.hasNext()) {
+                Map.Entry<Long, Map<String, Map<String, Aggregate>>> window = windows.next();
+                long start = window.getKey();
+                if (start + resolution.milli + graceMilli > now) { break; }
+
+                addPoints(resolution, start, window.getValue(), points);
+                windows.remove();
+                resolution.closedBefore = start + resolution.milli;
+                if (start == resolution.lastStart) {
+                    resolution.lastStart = Long.MIN_VALUE;
+                    resolution.lastWindow = null;
+                }
+            }
+        }
+        return points;
+    }
+
+    private static void addPoints(Resolution resolution, long start, Map<String, Map<String, Aggregate>> window,
+                                  JsonArray points) {
+        for (Map.Entry<String, Map<String, Aggregate>> byName : window.entrySet()) {
+            for (Map.Entry<String, Aggregate> byTags : byName.getValue().entrySet()) {
+                JsonObject tags = parseTags(byTags.getKey());
+                for (int i = 0; i < AGGREGATORS.length; i++) {
+                    points.add(new JsonObject().put("metric", byName.getKey()).put("timestamp", start / 1000)
+                            .put("value", byTags.getValue().value(i)).put("tags", tags)
+                            .put("interval", resolution.interval).put("aggregator", AGGREGATORS[i]));
+                }
+                resolution.series--;
+            }
+        }
+    }
+
+    private static JsonObject parseTags(String tags) {
+        JsonObject parsed = new JsonObject();
+        for (String tag : tags.split(" ")) {
+            int separator = tag.indexOf('=');
+            if (separator > 0) { parsed.put(tag.substring(0, separator), tag.substring(separator + 1)); }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the series aggregated in open windows, summed across the intervals
+     */
+    public int seriesCount() {
+        int count = 0;
+        for (Resolution resolution : resolutions) { count += resolution.series; }
+        return count;
+    }
+
+    /**
+     * @return the points dropped since the last call ie {"late" : 2, "overflow" : 0}
+     */
+    public JsonObject getAndResetDrops() {
+        JsonObject drops = new JsonObject().put("late", late).put("overflow", overflow);
+        late = 0;
+        overflow = 0;
+        return drops;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A metric name and tag set, pre-encoded into the bytes that come before and after the timestamp and value of a put
+ *  command so data points only need to store the series id.
+ */
+public class Series {
+    private final int id;
+    private final String name;
+    private final String tags;
+    private final byte[] head;
+    private final byte[] tail;
+
+    public Series(int id, String name, String tags) {
+        this.id = id;
+        this.name = name;
+        this.tags = tags;
+        head = ("put " + name + " ").getBytes(StandardCharsets.UTF_8);
+        tail = (" " + tags + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    /**
+     * @return 'put [name] '
+     */
+    public byte[] getHead() {
+        return head;
+    }
+
+    /**
+     * @return ' [tags]\n'
+     */
+    public byte[] getTail() {
+        return tail;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns metric name and tag set pairs to integer ids so queued data points can be held in primitive arrays.
+ *
+ * Each series tracks how many queued points reference it. Unreferenced series are kept around so steady state traffic
+ *  doesn't re-encode its series every flush, they are swept out once the dictionary grows past its max size. Not thread
+ *  safe, callers synchronize.
+ */
+public class SeriesDictionary {
+    // rough per series cost of the entry, map nodes and strings beyond the encoded bytes
+    private static final int SERIES_OVERHEAD_BYTES = 128;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<String, Map<String, Series>> seriesByName;
+    private final int maxSeries;
+    private Series[] series;
+    private int[] refs;
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int size;
+    private int sweepAt;
+    private long bytes;
+    private long referencedBytes;
+
+    public SeriesDictionary(int maxSeries) {
+        this.maxSeries = maxSeries;
+        seriesByName = new HashMap<>();
+        series = new Series[INITIAL_CAPACITY];
+        refs = new int[INITIAL_CAPACITY];
+        freeIds = new int[16];
+        sweepAt = maxSeries;
+    }
+
+    /**
+     * Look up or create the series and add a reference to it.
+     *
+     * @param name the fully qualified metric name
+     * @param tags the tags in OpenTsDb format
+     * @return the series id
+     */
+    public int acquire(String name, String tags) {
+        Map<String, Series> byTags = seriesByName.get(name);
+        if (byTags == null) {
+            byTags = new HashMap<>();
+            seriesByName.put(name, byTags);
+        }
+
+        Series entry = byTags.get(tags);
+        if (entry == null) {
+            if (size >= sweepAt) { sweep(); }
+
+            entry = new Series(nextFreeId(), name, tags);
+            byTags.put(tags, entry);
+            series[entry.getId()] = entry;
+            size++;
+            bytes += sizeOf(entry);
+        }
+
+        if (refs[entry.getId()]++ == 0) { referencedBytes += sizeOf(entry); }
+        return entry.getId();
+    }
+
+    /**
+     * Drop a reference to a series, ie when a point is drained or shed.
+     */
+    public void release(int id) {
+        if (--refs[id] == 0) { referencedBytes -= sizeOf(series[id]); }
+    }
+
+    public Series get(int id) {
+        return series[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate memory held by all the interned series
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the approximate memory held by series that queued points reference
+     */
+    public long referencedBytes() {
+        return referencedBytes;
+    }
+
+    private int nextFreeId() {
+        if (freeCount > 0) { return freeIds[--freeCount]; }
+
+        if (nextId == series.length) {
+            series = Arrays.copyOf(series, series.length * 2);
+            refs = Arrays.copyOf(refs, refs.length * 2);
+        }
+        return nextId++;
+    }
+
+    /**
+     * Remove every series no queued point references, if most series are still referenced back off so we aren't
+     *  sweeping on every new series.
+     */
+    private void sweep() {
+        for (int id = 0; id < nextId; id++) {
+            Series entry = series[id];
+            if (entry == null || refs[id] > 0) { continue; }
+
+            Map<String, Series> byTags = seriesByName.get(entry.getName());
+            byTags.remove(entry.getTags());
+            if (byTags.isEmpty()) { seriesByName.remove(entry.getName()); }
+
+            series[id] = null;
+            size--;
+            bytes -= sizeOf(entry);
+            if (freeCount == freeIds.length) { freeIds = Arrays.copyOf(freeIds, freeIds.length * 2); }
+            freeIds[freeCount++] = id;
+        }
+        sweepAt = Math.max(maxSeries, size * 2);
+    }
+
+    private static long sizeOf(Series entry) {
+        return SERIES_OVERHEAD_BYTES + entry.getHead().length + entry.getTail().length
+                + 2 * (entry.getName().length() + entry.getTags().length());
+    }
+}
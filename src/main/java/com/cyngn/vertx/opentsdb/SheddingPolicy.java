@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+/**
+ * How the backlog makes room once lower priority lanes have nothing left to shed.
+ */
+public enum SheddingPolicy {
+    /**
+     * Reject the incoming metric
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest metrics in the incoming metric's lane
+     */
+    DROP_OLDEST,
+    /**
+     * Accept non critical metrics with a probability that falls as the backlog fills, rejecting once full
+     */
+    SAMPLE;
+
+    /**
+     * @param policy the name of the policy, case insensitive
+     * @return the matching policy or null if there isn't one
+     */
+    public static SheddingPolicy fromString(String policy) {
+        for (SheddingPolicy value : values()) {
+            if (value.name().equalsIgnoreCase(policy)) { return value; }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+
+/**
+ * Accepts statsd formatted metrics over UDP so clients that can't reach the event bus can still report, datagrams are
+ *  parsed directly into the sink.
+ */
+public class StatsdListener {
+    private static final Logger logger = LoggerFactory.getLogger(StatsdListener.class);
+    public static final int DEFAULT_PORT = 8125;
+
+    private final Vertx vertx;
+    private final StatsdParser parser;
+    private final MetricSink sink;
+    private final int receiveBufferSize;
+    private DatagramSocket socket;
+    private long packetsReceived;
+    private long metricsReceived;
+
+    /**
+     * @param vertx the vertx instance
+     * @param parser the parser for incoming datagrams
+     * @param sink where parsed metrics go
+     * @param receiveBufferSize the socket receive buffer size in bytes, 0 for the OS default
+     */
+    public StatsdListener(Vertx vertx, StatsdParser parser, MetricSink sink, int receiveBufferSize) {
+        this.vertx = vertx;
+        this.parser = parser;
+        this.sink = sink;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @param host the interface to listen on
+     * @param port the port to listen on
+     * @param listenHandler called once the socket is bound or has failed to
+     */
+    public void listen(String host, int port, Handler<AsyncResult<Void>> listenHandler) {
+        DatagramSocketOptions options = new DatagramSocketOptions();
+        if (receiveBufferSize > 0) { options.setReceiveBufferSize(receiveBufferSize); }
+
+        socket = vertx.createDatagramSocket(options);
+        socket.handler(this::onPacket);
+        socket.exceptionHandler(ex -> logger.error("Error on statsd socket", ex));
+        socket.listen(port, host, result -> {
+            if (result.succeeded()) {
+                logger.info(String.format("Listening for statsd metrics on %s:%d", host, port));
+                listenHandler.handle(Future.succeededFuture());
+            } else {
+                listenHandler.handle(Future.failedFuture(result.cause()));
+            }
+        });
+    }
+
+    private void onPacket(DatagramPacket packet) {
+        packetsReceived++;
+        metricsReceived += parser.parse(packet.data(), System.currentTimeMillis(), sink);
+    }
+
+    /**
+     * @return the port the listener is bound to
+     */
+    public int getPort() {
+        return socket.localAddress().port();
+    }
+
+    public void dumpStats() {
+        long tmpPackets = packetsReceived;
+        packetsReceived = 0;
+        long tmpMetrics = metricsReceived;
+        metricsReceived = 0;
+
+        logger.info(String.format("statsd packets: %d metrics: %d invalidLines: %d rejectedLines: %d", tmpPackets,
+                tmpMetrics, parser.getAndResetInvalid(), parser.getAndResetRejected()));
+    }
+
+    public void close() {
+        if (socket != null) { socket.close(); }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Parses statsd datagrams straight off the packet buffer, ie
+ *
+ *  api.add_item.time:150.23|ms
+ *  api.requests:1|c|@0.1|#type:t,region:us-west1
+ *
+ * Every line of a multi-line datagram is parsed in one pass without building any intermediate messages. Counters
+ *  sent with a sample rate are scaled back up by it, all other types are sent on as is. Sets and gauge deltas
+ *  ('+'/'-' prefixed gauges) need state statsd keeps server side and are rejected. Names and tags are held to the
+ *  characters a TSD accepts, as relayed put lines are.
+ *
+ * Not thread safe, each listener owns its own parser.
+ */
+public class StatsdParser {
+
+    private final String prefix;
+    private final String defaultTags;
+    private final int maxLineTags;
+    private final MetricBlacklist blacklist;
+    private long invalidLines;
+    private long rejectedLines;
+
+    /**
+     * @param prefix the prefix to prepend to all metric names, null for none
+     * @param defaultTags the tags sent with every metric in OpenTsDb format
+     * @param maxLineTags the max number of tags a line can add to the default tags
+     * @param blacklist metrics OpenTsDb has rejected, null for none
+     */
+    public StatsdParser(String prefix, String defaultTags, int maxLineTags, MetricBlacklist blacklist) {
+        this.prefix = prefix != null && prefix.length() > 0 ? prefix + "." : "";
+        this.defaultTags = defaultTags == null ? "" : defaultTags;
+        this.maxLineTags = maxLineTags;
+        this.blacklist = blacklist;
+    }
+
+    /**
+     * @param packet the datagram, one metric per line
+     * @param timestamp the time to record the metrics at
+     * @param sink where the parsed metrics go
+     * @return the number of metrics the sink accepted
+     */
+    public int parse(Buffer packet, long timestamp, MetricSink sink) {
+        int parsed = 0;
+        int lineStart = 0;
+        int length = packet.length();
+        for (int i = 0; i <= length; i++) {
+            if (i < length && packet.getByte(i) != '\n') { continue; }
+
+            int lineEnd = i > lineStart && packet.getByte(i - 1) == '\r' ? i - 1 : i;
+            if (lineEnd > lineStart) {
+                long rejected = rejectedLines;
+                if (!parseLine(packet, lineStart, lineEnd, timestamp, sink)) { invalidLines++; }
+                else if (rejectedLines == rejected) { parsed++; }
+            }
+            lineStart = i + 1;
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the number of lines that couldn't be parsed since the last call
+     */
+    public long getAndResetInvalid() {
+        long invalid = invalidLines;
+        invalidLines = 0;
+        return invalid;
+    }
+
+    /**
+     * @return the number of valid lines the sink discarded since the last call
+     */
+    public long getAndResetRejected() {
+        long rejected = rejectedLines;
+        rejectedLines = 0;
+        return rejected;
+    }
+
+    private boolean parseLine(Buffer packet, int start, int end, long timestamp, MetricSink sink) {
+        int nameEnd = indexOf(packet, ':', start, end);
+        int valueEnd = indexOf(packet, '|', nameEnd + 1, end);
+        if (nameEnd <= start || valueEnd == -1 || valueEnd == nameEnd + 1) { return false; }
+        // anything else, ie a space, would corrupt the put line and every line batched after it
+        if (!PutLineParser.isValidName(packet, start, nameEnd)) { return false; }
+
+        int typeEnd = indexOf(packet, '|', valueEnd + 1, end);
+        if (typeEnd == -1) { typeEnd = end; }
+        if (typeEnd == valueEnd + 1) { return false; }
+        boolean counter = typeEnd - valueEnd == 2 && packet.getByte(valueEnd + 1) == 'c';
+        boolean gauge = typeEnd - valueEnd == 2 && packet.getByte(valueEnd + 1) == 'g';
+        if (!counter && !gauge && !isTimer(packet, valueEnd + 1, typeEnd)) { return false; }
+
+        byte sign = packet.getByte(nameEnd + 1);
+        if (gauge && (sign == '+' || sign == '-')) { return false; }
+
+        double sampleRate = 1;
+        StringBuilder tags = null;
+        int sectionStart = typeEnd + 1;
+        while (sectionStart < end) {
+            int sectionEnd = indexOf(packet, '|', sectionStart, end);
+            if (sectionEnd == -1) { sectionEnd = end; }
+
+            byte marker = packet.getByte(sectionStart);
+            if (marker == '@') {
+                try {
+                    sampleRate = Double.parseDouble(packet.getString(sectionStart + 1, sectionEnd));
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+                if (!(sampleRate > 0 && sampleRate <= 1)) { return false; }
+            } else if (marker == '#') {
+                tags = appendTags(packet, sectionStart + 1, sectionEnd);
+                if (tags == null) { return false; }
+            } else {
+                return false;
+            }
+            sectionStart = sectionEnd + 1;
+        }
+
+        String tagString = tags == null ? defaultTags : tags.toString();
+        // this is an OpenTsDB requirement
+        if (tagString.length() == 0) { return false; }
+
+        String name = packet.getString(start, nameEnd);
+        String fullName = prefix.length() > 0 ? prefix + name : name;
+        if (blacklist != null && !blacklist.isEmpty() && blacklist.contains(fullName)) { return false; }
+
+        Metric metric = Metric.parse(packet, nameEnd + 1, valueEnd, fullName, tagString, timestamp);
+        if (metric != null && counter && sampleRate != 1) { metric = scale(metric, sampleRate); }
+        if (metric == null) { return false; }
+
+        if (sink.accept(name, metric) != null) { rejectedLines++; }
+        return true;
+    }
+
+    private static boolean isTimer(Buffer packet, int start, int end) {
+        int length = end - start;
+        byte first = packet.getByte(start);
+        // timers, histograms and distributions are all sent on as individual values
+        return (length == 2 && first == 'm' && packet.getByte(start + 1) == 's')
+                || (length == 1 && (first == 'h' || first == 'd'));
+    }
+
+    /**
+     * Converts statsd tags 'name1:value1,name2:value2' to OpenTsDb tags 'name1=value1 name2=value2'
+     *
+     * @return the default tags with the line's tags appended or null if the tags are invalid
+     */
+    private StringBuilder appendTags(Buffer packet, int start, int end) {
+        StringBuilder tags = new StringBuilder(defaultTags.length() + (end - start) + 1).append(defaultTags);
+        int count = 0;
+        int tagStart = start;
+        while (tagStart < end) {
+            int tagEnd = indexOf(packet, ',', tagStart, end);
+            if (tagEnd == -1) { tagEnd = end; }
+
+            int separator = indexOf(packet, ':', tagStart, tagEnd);
+            if (separator == -1 || !PutLineParser.isValidName(packet, tagStart, separator)
+                    || !PutLineParser.isValidName(packet, separator + 1, tagEnd)) { return null; }
+            if (++count > maxLineTags) { return null; }
+
+            if (tags.length() > 0) { tags.append(' '); }
+            tags.append(packet.getString(tagStart, separator)).append('=')
+                    .append(packet.getString(separator + 1, tagEnd));
+            tagStart = tagEnd + 1;
+        }
+        return tags;
+    }
+
+    /**
+     * Counters sent with a sample rate are scaled back up by it, an integer counter stays an integer when it can
+     */
+    private static Metric scale(Metric metric, double sampleRate) {
+        double value = metric.getValue() / sampleRate;
+        if (Double.isNaN(value) || Double.isInfinite(value)) { return null; }
+        return !metric.isFloat() && value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE
+                ? Metric.ofLong(metric.getName(), metric.getTags(), metric.getTimestamp(), (long) value)
+                : Metric.ofDouble(metric.getName(), metric.getTags(), metric.getTimestamp(), value);
+    }
+
+    private static int indexOf(Buffer packet, char target, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (packet.getByte(i) == target) { return i; }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+
+/**
+ * Speaks enough of the TSD telnet interface for collectors like tcollector to send their put lines here instead of
+ *  directly to a TSD. Lines are validated and queued in the backlog, so any number of collectors share the module's
+ *  few well batched connections to the TSDs.
+ *
+ * Like a TSD, invalid lines get an error written back and valid ones get no reply. Valid lines the sink discards, ie
+ *  rate limited or with no room in the backlog, get the reason written back so collectors can see they are dropped.
+ */
+public class TelnetRelay {
+    private static final Logger logger = LoggerFactory.getLogger(TelnetRelay.class);
+    public static final int DEFAULT_PORT = 4243;
+    public static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+    static final String VERSION_REPLY = "mod-opentsdb telnet relay\n";
+
+    private final Vertx vertx;
+    private final PutLineParser parser;
+    private final MetricSink sink;
+    private final MetricSink recordingSink;
+    // why the sink discarded the line being handled, null if it didn't
+    private String rejection;
+    private final int maxLineLength;
+    private NetServer server;
+    private int connections;
+    private long linesReceived;
+    private long invalidLines;
+    private long rejectedLines;
+
+    /**
+     * @param vertx the vertx instance
+     * @param parser the parser for put lines
+     * @param sink where parsed metrics go
+     * @param maxLineLength the longest line accepted before the connection is closed
+     */
+    public TelnetRelay(Vertx vertx, PutLineParser parser, MetricSink sink, int maxLineLength) {
+        this.vertx = vertx;
+        this.parser = parser;
+        this.sink = sink;
+        this.recordingSink = this::accept;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @param host the interface to listen on
+     * @param port the port to listen on
+     * @param listenHandler called once the server is bound or has failed to
+     */
+    public void listen(String host, int port, Handler<AsyncResult<Void>> listenHandler) {
+        server = vertx.createNetServer();
+        server.connectHandler(this::onConnect);
+        server.listen(port, host, result -> {
+            if (result.succeeded()) {
+                logger.info(String.format("Relaying telnet put lines from %s:%d", host, server.actualPort()));
+                listenHandler.handle(Future.succeededFuture());
+            } else {
+                listenHandler.handle(Future.failedFuture(result.cause()));
+            }
+        });
+    }
+
+    private void onConnect(NetSocket socket) {
+        connections++;
+        Connection connection = new Connection(socket);
+        socket.handler(connection::onData);
+        socket.closeHandler(v -> connections--);
+        socket.exceptionHandler(ex -> logger.warn(String.format("Error on relay connection from %s",
+                socket.remoteAddress()), ex));
+    }
+
+    /**
+     * A collector connection, a line can be split across reads so the tail of each read is carried over to the next
+     */
+    private class Connection {
+        private final NetSocket socket;
+        private Buffer partialLine;
+
+        private Connection(NetSocket socket) {
+            this.socket = socket;
+        }
+
+        private void onData(Buffer data) {
+            Buffer buffer = data;
+            if (partialLine != null) {
+                buffer = partialLine.appendBuffer(data);
+                partialLine = null;
+            }
+
+            int lineStart = 0;
+            int length = buffer.length();
+            for (int i = 0; i < length; i++) {
+                if (buffer.getByte(i) != '\n') { continue; }
+
+                int lineEnd = i > lineStart && buffer.getByte(i - 1) == '\r' ? i - 1 : i;
+                if (lineEnd > lineStart && !onLine(buffer, lineStart, lineEnd)) { return; }
+                lineStart = i + 1;
+            }
+
+            if (length - lineStart > maxLineLength) {
+                socket.write("put: line too long, max is " + maxLineLength + " bytes\n");
+                socket.close();
+            } else if (lineStart < length) {
+                partialLine = buffer.getBuffer(lineStart, length);
+            }
+        }
+
+        /**
+         * @return false if the connection has been closed
+         */
+        private boolean onLine(Buffer buffer, int start, int end) {
+            linesReceived++;
+            if (startsWith(buffer, start, end, "put ")) {
+                rejection = null;
+                String error = parser.parse(buffer, start + 4, end, recordingSink);
+                if (rejection != null) {
+                    rejectedLines++;
+                    socket.write("put: " + rejection + "\n");
+                } else if (error != null) {
+                    invalidLines++;
+                    socket.write("put: illegal argument: " + error + "\n");
+                }
+            } else if (startsWith(buffer, start, end, "version")) {
+                // collectors use this to check the connection is alive
+                socket.write(VERSION_REPLY);
+            } else if (startsWith(buffer, start, end, "exit")) {
+                socket.close();
+                return false;
+            } else {
+                invalidLines++;
+                socket.write("unknown command: " + buffer.getString(start, end) + ".  Try `help'.\n");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hands the metric on to the sink, noting why it was discarded so it isn't reported as an illegal argument
+     */
+    private String accept(String name, Metric metric) {
+        rejection = sink.accept(name, metric);
+        return rejection;
+    }
+
+    private static boolean startsWith(Buffer buffer, int start, int end, String command) {
+        if (end - start < command.length()) { return false; }
+        for (int i = 0; i < command.length(); i++) {
+            if (buffer.getByte(start + i) != command.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return the port the relay is bound to
+     */
+    public int getPort() {
+        return server.actualPort();
+    }
+
+    public void dumpStats() {
+        long tmpLines = linesReceived;
+        linesReceived = 0;
+        long tmpInvalid = invalidLines;
+        invalidLines = 0;
+        long tmpRejected = rejectedLines;
+        rejectedLines = 0;
+
+        logger.info(String.format("relay connections: %d lines: %d invalidLines: %d rejectedLines: %d", connections,
+                tmpLines, tmpInvalid, tmpRejected));
+    }
+
+    public void close() {
+        if (server != null) { server.close(); }
+    }
+}
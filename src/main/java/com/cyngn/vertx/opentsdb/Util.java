@@ -14,9 +14,12 @@
  */
 package com.cyngn.vertx.opentsdb;
 
-
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.json.JsonObject;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * General purpose utils
  *
@@ -47,4 +50,34 @@ public class Util {
 
         return tagsString;
     }
+
+    /**
+     * Format a raw data point value as OpenTsDb expects it
+     *
+     * @param value the raw value, the bits of a double if isFloat
+     * @param isFloat whether the value is floating point
+     * @return the value as a string
+     */
+    public static String formatValue(long value, boolean isFloat) {
+        if (!isFloat) { return Long.toString(value); }
+
+        ByteBuf out = Unpooled.buffer(32);
+        NumberFormatter.writeDouble(out, Double.longBitsToDouble(value));
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param value a string value
+     * @return true if the value is an optionally signed run of digits
+     */
+    public static boolean isInteger(String value) {
+        int start = value.length() > 1 && (value.charAt(0) == '-' || value.charAt(0) == '+') ? 1 : 0;
+        if (start == value.length()) { return false; }
+
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') { return false; }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the write size for a sender with additive increase, multiplicative decrease. Every write that completes
+ *  within the latency target grows the size by the minimum size, a slow write or a full write queue halves it.
+ *
+ * Latency is the time the channel spent on a write, from when it was issued or the previous write completed, whichever
+ *  is later. So writes queued behind each other in a large flush aren't counted as slow. The decrease backs off for
+ *  the writes already in flight when it happened, so one stall only halves the size once.
+ */
+public class BatchSizer {
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    public static final long DEFAULT_TARGET_LATENCY_MILLI = 50;
+
+    private final int minBytes;
+    private final int maxBytes;
+    private final long targetLatencyNanos;
+    private final AtomicInteger batchSize;
+    private volatile long lastDecreaseNanos;
+    private long lastCompletionNanos;
+
+    /**
+     * @param minBytes the smallest size to write, and the step the size grows by
+     * @param maxBytes the largest size to write
+     * @param targetLatencyMilli writes that take longer than this shrink the size
+     */
+    public BatchSizer(int minBytes, int maxBytes, long targetLatencyMilli) {
+        if (minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException(String.format("Invalid batch size bounds min: %d max: %d", minBytes,
+                    maxBytes));
+        }
+
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMilli);
+        batchSize = new AtomicInteger(minBytes);
+        lastDecreaseNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the number of bytes to put in each write
+     */
+    public int getBatchSize() {
+        return batchSize.get();
+    }
+
+    /**
+     * Called on the sender's event loop as each write completes, in the order they were issued.
+     *
+     * @param issuedNanos when the write was handed to the channel
+     * @param completedNanos when the write completed
+     */
+    public void onWriteComplete(long issuedNanos, long completedNanos) {
+        long latency = completedNanos - Math.max(issuedNanos, lastCompletionNanos);
+        lastCompletionNanos = completedNanos;
+
+        if (latency <= targetLatencyNanos) {
+            batchSize.updateAndGet(size -> Math.min(maxBytes, size + minBytes));
+        } else if (issuedNanos > lastDecreaseNanos) {
+            decrease();
+        }
+    }
+
+    /**
+     * Called when a write is refused because the sender's write queue is full
+     */
+    public void onWriteQueueFull() {
+        decrease();
+    }
+
+    private void decrease() {
+        lastDecreaseNanos = System.nanoTime();
+        batchSize.updateAndGet(size -> Math.max(minBytes, size / 2));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pulls the offending metric name out of the error lines a TSD sends back over the telnet interface, ie
+ *
+ *  put: unknown metric: No such name for 'metrics': 'api.add_item.time'
+ *  put: illegal argument: Invalid metric name ("@@test"): illegal character: @
+ */
+public class ErrorReplyParser {
+
+    private static final Pattern UNKNOWN_METRIC = Pattern.compile("No such name for 'metrics': '([^']+)'");
+    private static final Pattern INVALID_METRIC = Pattern.compile("Invalid metric name \\(\"([^\"]+)\"\\)");
+
+    /**
+     * @param errorLine a single line of error output from a TSD
+     * @return the metric name the TSD rejected or null if the error doesn't identify one, ie a bad tag value
+     */
+    public static String getRejectedMetric(String errorLine) {
+        Matcher matcher = UNKNOWN_METRIC.matcher(errorLine);
+        if (matcher.find()) { return matcher.group(1); }
+
+        matcher = INVALID_METRIC.matcher(errorLine);
+        if (matcher.find()) { return matcher.group(1); }
+
+        return null;
+    }
+}
@@ -14,6 +14,7 @@
  */
 package com.cyngn.vertx.opentsdb.client;
 
+import io.netty.buffer.ByteBuf;
 import io.vertx.core.buffer.Buffer;
 
 /**
@@ -23,6 +24,39 @@ import io.vertx.core.buffer.Buffer;
  */
 public interface MetricsSender {
     boolean write(Buffer data);
+
+    /**
+     * Write a Netty buffer, the sender takes ownership of the buffer and is responsible for releasing it once the
+     *  write has completed or failed.
+     *
+     * @param data the buffer to write
+     * @return true if the data was accepted for writing
+     */
+    default boolean write(ByteBuf data) {
+        try {
+            byte[] bytes = new byte[data.readableBytes()];
+            data.readBytes(bytes);
+            return write(Buffer.buffer(bytes));
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * @param configuredSize the configured max bytes per write
+     * @return the max bytes the sender currently wants per write
+     */
+    default int getBatchSize(int configuredSize) {
+        return configuredSize;
+    }
+
+    /**
+     * @return true if the sender can take another write without queueing it up behind a full socket buffer
+     */
+    default boolean isWritable() {
+        return isConnected();
+    }
+
     boolean isConnected();
     void close();
     void dumpStats();
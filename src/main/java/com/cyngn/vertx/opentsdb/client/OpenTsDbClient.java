@@ -1,9 +1,14 @@
 package com.cyngn.vertx.opentsdb.client;
 
 import com.cyngn.vertx.opentsdb.EventBusMessage;
+import com.cyngn.vertx.opentsdb.MetricBlacklist;
 import com.cyngn.vertx.opentsdb.OpenTsDbReporter;
+import com.cyngn.vertx.opentsdb.jfr.FlightRecorderEvents;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.AsyncResultHandler;
+import io.vertx.core.Context;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
@@ -13,14 +18,21 @@ import io.vertx.core.logging.impl.LoggerFactory;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetClientOptions;
 import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.ConnectionBase;
 
 import java.io.Closeable;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
  * Client for communicating directly with OpenTsDb.
  *
+ * The socket, its reads and the reconnect timers all live on the client's own context, so a slow or flapping host
+ *  doesn't add latency to whatever is feeding it. Writes can come from any thread, the buffer is handed to the
+ *  channel which completes the write on the client's event loop.
+ *
  * @author truelove@cyngn.com (Jeremy Truelove) 4/18/15
  */
 public class OpenTsDbClient implements MetricsSender, Closeable {
@@ -28,46 +40,88 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
     private final String host;
     private final int port;
     private final Vertx vertx;
+    private final Context context;
     private final NetClient netClient;
     private final EventBus bus;
+    private final MetricBlacklist blacklist;
+    private final BatchSizer batchSizer;
     private Logger logger = LoggerFactory.getLogger(OpenTsDbClient.class);
 
     private Buffer readData;
 
-    private NetSocket connection;
+    private volatile NetSocket connection;
 
     private long initialBackOffMilli = 1000;
     private long lastTimeout = initialBackOffMilli;
     private long maxReconnectTime = 64000;
+    private static final long DRAIN_CHECK_MILLI = 50;
+
+    private volatile boolean connected;
+    private volatile boolean shutdown;
+    private boolean reconnectPending;
+    private volatile boolean closed;
+    // the JFR disconnect event in progress, null while connected or when it isn't being recorded
+    private Object disconnect;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final AtomicInteger consecutiveDisconnects = new AtomicInteger();
+    private final AtomicLong bytesWrittenForPeriod = new AtomicLong();
+    private final AtomicInteger errorsReceived = new AtomicInteger();
 
-    private boolean connected;
-    private int consecutiveDisconnects;
-    private long bytesWrittenForPeriod;
-    private int errorsReceived;
+    public OpenTsDbClient(String host, int port, Vertx vertx, MetricBlacklist blacklist,
+                          Consumer<Boolean> onInitialized) {
+        this(host, port, vertx, vertx.getOrCreateContext(), blacklist, null, onInitialized);
+    }
+
+    public OpenTsDbClient(String host, int port, Vertx vertx, Context context, MetricBlacklist blacklist,
+                          Consumer<Boolean> onInitialized) {
+        this(host, port, vertx, context, blacklist, null, onInitialized);
+    }
 
-    public OpenTsDbClient(String host, int port, Vertx vertx, Consumer<Boolean> onInitialized) {
+    /**
+     * @param host the TSD host
+     * @param port the TSD telnet port
+     * @param vertx the vertx instance
+     * @param context the context the socket and its timers run on
+     * @param blacklist where metrics the TSD rejects are recorded
+     * @param batchSizer tunes the write size to how fast the TSD takes data, null to use the configured size
+     * @param onInitialized called on the client's context with the result of the first connect attempt
+     */
+    public OpenTsDbClient(String host, int port, Vertx vertx, Context context, MetricBlacklist blacklist,
+                          BatchSizer batchSizer, Consumer<Boolean> onInitialized) {
         NetClientOptions options = new NetClientOptions()
                 .setTcpKeepAlive(true);
         netClient = vertx.createNetClient(options);
         connected = false;
-        consecutiveDisconnects = 0;
-        bytesWrittenForPeriod = 0;
         bus = vertx.eventBus();
 
         this.vertx = vertx;
+        this.context = context;
+        this.blacklist = blacklist;
+        this.batchSizer = batchSizer;
 
         this.host = host;
         this.port = port;
 
         readData = Buffer.factory.buffer();
 
+        // the socket is bound to the context it is connected from
+        context.runOnContext(v -> connect(onInitialized));
+    }
+
+    private void connect(Consumer<Boolean> onInitialized) {
         netClient.connect(port, host, new AsyncResultHandler<NetSocket>() {
             @Override
             public void handle(AsyncResult<NetSocket> connectResult) {
                 onInitialized.accept(connectResult.succeeded());
                 if (connectResult.succeeded()) {
                    onConnect(connectResult.result());
-                } // if we don't succeed initially we'll fail startup of the reporter
+                } else {
+                    // keep trying in the background, metrics are held in the backlog until a host is up
+                    disconnect = FlightRecorderEvents.beginDisconnect(host, port);
+                    long reconnectIn = processReconnect();
+                    logger.warn(String.format("Failed initial connect to host: %s port: %d, will re-attempt in %d(ms)",
+                            host, port, reconnectIn));
+                }
             }
         });
     }
@@ -81,21 +135,36 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
 
     private void onException(Throwable throwable) {
         logger.error(String.format("Got exception on socket %s, ex: ", connection.remoteAddress()), throwable);
-        close();
+        onDisconnect();
+        closeConnection();
         processReconnect();
     }
 
     private long processReconnect() {
+        // a closed client stays closed and the socket close and exception handlers can both ask for a reconnect
+        if (shutdown || reconnectPending) { return lastTimeout; }
+
         long reconnectIn = lastTimeout < maxReconnectTime ? lastTimeout * 2 : maxReconnectTime;
         lastTimeout = reconnectIn;
 
         // attempt reconnect after back off time
-        vertx.setTimer(reconnectIn, timer -> reconnect());
+        reconnectPending = true;
+        vertx.setTimer(reconnectIn, timer -> {
+            reconnectPending = false;
+            reconnect();
+        });
         return reconnectIn;
     }
 
     private void onConnect(NetSocket connection) {
+        if (shutdown) {
+            connection.close();
+            return;
+        }
+
         logger.info(String.format("Connected to host: %s port: %d", host, port));
+        FlightRecorderEvents.commitDisconnect(disconnect);
+        disconnect = null;
         this.connection = connection;
         lastTimeout = initialBackOffMilli;
         initializeHandlers();
@@ -103,7 +172,9 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
     }
 
     private void reconnect() {
+        if (shutdown) { return; }
         logger.info(String.format("Reconnecting to host: %s port: %d", host, port));
+        FlightRecorderEvents.reconnectAttempted(disconnect);
         netClient.connect(port, host, new AsyncResultHandler<NetSocket>() {
             @Override
             public void handle(AsyncResult<NetSocket> connectResult) {
@@ -120,7 +191,8 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
 
     private void onReadStreamClosed(Void aVoid) {
         logger.warn("Read streamed closed");
-        close();
+        onDisconnect();
+        closeConnection();
         processReconnect();
     }
 
@@ -130,48 +202,189 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
      * @param buffer
      */
     private void onDataReceived(Buffer buffer) {
-        logger.error("Got data from agent: " + buffer.toString(StandardCharsets.UTF_8.toString()) + " this is not expected");
+        readData.appendBuffer(buffer);
+
+        // errors are newline delimited but can be split across reads, only handle the complete lines
+        String data = readData.toString(StandardCharsets.UTF_8.toString());
+        int lineEnd = data.lastIndexOf('\n');
+        if (lineEnd == -1) { return; }
+
+        readData = Buffer.factory.buffer();
+        if (lineEnd < data.length() - 1) { readData.appendString(data.substring(lineEnd + 1)); }
+
+        for (String line : data.substring(0, lineEnd).split("\n")) {
+            if (line.length() > 0) { onErrorReceived(line); }
+        }
+    }
+
+    private void onErrorReceived(String line) {
+        logger.error("Got data from agent: " + line + " this is not expected");
+        errorsReceived.incrementAndGet();
+
         // let the user know if they failed to write because the data is invalid
-        bus.send(OpenTsDbReporter.ERROR_MESSAGE_ADDRESS, new JsonObject().put("error", EventBusMessage.INVALID_DATA));
-        errorsReceived++;
+        JsonObject error = new JsonObject().put("error", EventBusMessage.INVALID_DATA);
+        String metric = ErrorReplyParser.getRejectedMetric(line);
+        if (metric != null) {
+            blacklist.add(metric);
+            error.put("metric", metric);
+        }
+        bus.send(OpenTsDbReporter.ERROR_MESSAGE_ADDRESS, error);
     }
 
     public boolean write(Buffer metricData) {
-        if(connection.writeQueueFull()) {
-            logger.error(String.format("Discarding %d bytes write buffer full", metricData.length()));
-            return false;
-        } else if (!connected) {
+        if (!connected) {
             logger.error(String.format("Discarding %d bytes no connection", metricData.length()));
+            FlightRecorderEvents.writeStall(host, port, "not_connected", metricData.length());
+            return false;
+        } else if(connection.writeQueueFull()) {
+            logger.error(String.format("Discarding %d bytes write buffer full", metricData.length()));
+            FlightRecorderEvents.writeStall(host, port, "write_queue_full", metricData.length());
             return false;
         }
         connection.write(metricData);
-        bytesWrittenForPeriod += metricData.length();
+        bytesWrittenForPeriod.addAndGet(metricData.length());
+        return true;
+    }
+
+    /**
+     * Hands the buffer directly to the underlying channel so pooled direct buffers are written without being copied,
+     *  Netty releases the buffer back to its pool once the socket write completes.
+     */
+    @Override
+    public boolean write(ByteBuf metricData) {
+        int length = metricData.readableBytes();
+        if (!connected) {
+            logger.error(String.format("Discarding %d bytes no connection", length));
+            FlightRecorderEvents.writeStall(host, port, "not_connected", length);
+            metricData.release();
+            return false;
+        } else if (!(connection instanceof ConnectionBase)) {
+            return MetricsSender.super.write(metricData);
+        } else if (connection.writeQueueFull()) {
+            logger.error(String.format("Discarding %d bytes write buffer full", length));
+            if (batchSizer != null) { batchSizer.onWriteQueueFull(); }
+            FlightRecorderEvents.writeStall(host, port, "write_queue_full", length);
+            metricData.release();
+            return false;
+        }
+
+        long issued = System.nanoTime();
+        ChannelFuture future = ((ConnectionBase) connection).writeToChannel(metricData);
+        if (future == null) {
+            logger.error(String.format("Discarding %d bytes channel closed", length));
+            FlightRecorderEvents.writeStall(host, port, "channel_closed", length);
+            metricData.release();
+            return false;
+        }
+        pendingWrites.incrementAndGet();
+        future.addListener(result -> {
+            pendingWrites.decrementAndGet();
+            if (batchSizer != null && result.isSuccess()) { batchSizer.onWriteComplete(issued, System.nanoTime()); }
+        });
+        bytesWrittenForPeriod.addAndGet(length);
         return true;
     }
 
     private void onClose(Void aVoid) {
         logger.info(String.format("Closing socket: %s", connection.remoteAddress()));
         connected = false;
-        consecutiveDisconnects++;
+        consecutiveDisconnects.incrementAndGet();
+        onDisconnect();
+    }
+
+    /**
+     * The socket's close, end and exception handlers can all fire for one lost connection, only the first begins the
+     *  disconnect event
+     */
+    private void onDisconnect() {
+        if (disconnect == null && !shutdown) { disconnect = FlightRecorderEvents.beginDisconnect(host, port); }
+    }
+
+    @Override
+    public int getBatchSize(int configuredSize) {
+        return batchSizer == null ? configuredSize : batchSizer.getBatchSize();
     }
 
     public boolean isConnected() {
         return connected;
     }
 
+    @Override
+    public boolean isWritable() {
+        NetSocket socket = connection;
+        return connected && socket != null && !socket.writeQueueFull();
+    }
+
     public void dumpStats() {
-        int tmpDisconnects = consecutiveDisconnects;
-        consecutiveDisconnects = 0;
-        long tmpBytes = bytesWrittenForPeriod;
-        bytesWrittenForPeriod = 0;
-        int tmpErrorsReceived = errorsReceived;
-        errorsReceived = 0;
+        int tmpDisconnects = consecutiveDisconnects.getAndSet(0);
+        long tmpBytes = bytesWrittenForPeriod.getAndSet(0);
+        int tmpErrorsReceived = errorsReceived.getAndSet(0);
+
+        String batchSize = batchSizer == null ? "" : ", batchSize: " + batchSizer.getBatchSize();
+        logger.info(String.format("host: %s port: %d disconnects: %d bytesWritten: %d, errorsReceived: %d%s", host,
+                port, tmpDisconnects, tmpBytes, tmpErrorsReceived, batchSize));
+    }
+
+    /**
+     * @return the number of writes handed to the socket that have not yet completed
+     */
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
 
-        logger.info(String.format("host: %s port: %d disconnects: %d bytesWritten: %d, errorsReceived: %d", host, port,
-                tmpDisconnects, tmpBytes, tmpErrorsReceived));
+    /**
+     * @return the context the client's socket and timers run on
+     */
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * @return true once the socket and the net client behind it have been closed for good
+     */
+    public boolean isClosed() {
+        return closed;
     }
 
     public void close() {
+        shutdown = true;
+        context.runOnContext(v -> closeClient());
+    }
+
+    /**
+     * Stop reconnecting and close the socket once the writes already handed to it complete, or the timeout passes.
+     *
+     * @param timeoutMilli the max time to wait on pending writes
+     */
+    public void closeWhenDrained(long timeoutMilli) {
+        shutdown = true;
+        long deadline = System.currentTimeMillis() + timeoutMilli;
+        context.runOnContext(v -> checkDrained(deadline));
+    }
+
+    private void checkDrained(long deadline) {
+        if (isConnected() && pendingWrites.get() > 0 && System.currentTimeMillis() < deadline) {
+            vertx.setTimer(DRAIN_CHECK_MILLI, timerId -> checkDrained(deadline));
+            return;
+        }
+
+        if (pendingWrites.get() > 0) {
+            logger.warn(String.format("Closing host: %s port: %d with %d writes pending", host, port,
+                    pendingWrites.get()));
+        }
+        closeClient();
+    }
+
+    /**
+     * Unlike a reconnect the net client goes too, a removed host would otherwise hold on to it for good
+     */
+    private void closeClient() {
+        closeConnection();
+        netClient.close();
+        closed = true;
+    }
+
+    private void closeConnection() {
         if(isConnected()) {
             connection.close();
         }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import com.cyngn.vertx.opentsdb.EventBusMessage;
+import com.cyngn.vertx.opentsdb.OpenTsDbReporter;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.impl.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts rollup points to the OpenTsDb 2.4+ HTTP rollup endpoint, split into requests of at most the batch size.
+ *
+ * Rollups are sent once as their windows close and aren't retried, a request that fails or times out is logged and
+ *  reported on the error address with the number of points lost.
+ */
+public class RollupClient implements Closeable {
+    public static final String ROLLUP_PATH = "/api/rollup";
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 4242;
+    public static final int DEFAULT_BATCH_SIZE = 2000;
+    public static final long DEFAULT_TIMEOUT_MILLI = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(RollupClient.class);
+    private final String host;
+    private final int port;
+    private final int batchSize;
+    private final long timeoutMilli;
+    private final HttpClient httpClient;
+    private final EventBus bus;
+    private final AtomicLong pointsSent = new AtomicLong();
+    private final AtomicLong pointsFailed = new AtomicLong();
+
+    /**
+     * @param host the TSD host
+     * @param port the TSD HTTP port
+     * @param vertx the vertx instance
+     * @param batchSize the max points to send per request
+     * @param timeoutMilli how long to wait on a response before failing the request
+     */
+    public RollupClient(String host, int port, Vertx vertx, int batchSize, long timeoutMilli) {
+        if (batchSize <= 0) { throw new IllegalArgumentException("batchSize must be positive"); }
+        this.host = host;
+        this.port = port;
+        this.batchSize = batchSize;
+        this.timeoutMilli = timeoutMilli;
+        httpClient = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true).setTcpKeepAlive(true));
+        bus = vertx.eventBus();
+    }
+
+    /**
+     * @param points the rollup points to send
+     */
+    public void send(JsonArray points) {
+        for (int start = 0; start < points.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, points.size());
+            JsonArray batch = start == 0 && end == points.size() ? points : new JsonArray(points.getList()
+                    .subList(start, end));
+            post(batch);
+        }
+    }
+
+    private void post(JsonArray batch) {
+        int count = batch.size();
+        HttpClientRequest request = httpClient.post(port, host, ROLLUP_PATH, response -> {
+            if (response.statusCode() / 100 == 2) {
+                pointsSent.addAndGet(count);
+                return;
+            }
+            response.bodyHandler(body -> onFailure(count, "status: " + response.statusCode() + " " + body));
+        });
+        request.exceptionHandler(error -> onFailure(count, String.valueOf(error)));
+        request.setTimeout(timeoutMilli);
+        request.putHeader("Content-Type", "application/json");
+        request.end(batch.encode());
+    }
+
+    private void onFailure(int count, String reason) {
+        logger.error(String.format("Failed sending %d rollup points to host: %s port: %d, %s", count, host, port,
+                reason));
+        pointsFailed.addAndGet(count);
+        bus.send(OpenTsDbReporter.ERROR_MESSAGE_ADDRESS, new JsonObject()
+                .put("error", EventBusMessage.ROLLUP_FAILURE.toString()).put("points", count));
+    }
+
+    public void dumpStats() {
+        logger.info(String.format("rollups host: %s port: %d pointsSent: %d pointsFailed: %d", host, port,
+                pointsSent.getAndSet(0), pointsFailed.getAndSet(0)));
+    }
+
+    @Override
+    public void close() {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The time a client spent without a connection, from losing it or failing to make it until a reconnect succeeds
+ */
+@Name("com.cyngn.vertx.opentsdb.Disconnect")
+@Label("OpenTsDb Disconnect")
+@Category({"Vert.x", "OpenTsDb"})
+@Description("A TSD connection was down, lasting until a reconnect succeeded")
+@StackTrace(false)
+class DisconnectEvent extends jdk.jfr.Event {
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Reconnect Attempts")
+    int attempts;
+}
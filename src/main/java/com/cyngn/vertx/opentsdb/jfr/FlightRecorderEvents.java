@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for the ingest, flush and socket write phases, so reporter stalls can be lined up with
+ *  GC and safepoints in an always on recording.
+ *
+ * Events are created through these methods rather than directly so the module still runs on a JVM without the
+ *  jdk.jfr API, the event classes are only loaded when it is there. An event in progress is passed around as an
+ *  Object that is null when its type isn't being recorded, so with JFR off each call is a null check or an enabled
+ *  check on an event the JIT never allocates.
+ *
+ * Events are not thread safe, one in progress belongs to the thread that began it.
+ */
+public final class FlightRecorderEvents {
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private FlightRecorderEvents() {}
+
+    private static boolean checkAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the jdk.jfr API is there, events are still only recorded when a recording enables them
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return the flush in progress or null if flushes aren't being recorded
+     */
+    public static Object beginFlush() {
+        if (!AVAILABLE) { return null; }
+        FlushEvent event = new FlushEvent();
+        if (!event.isEnabled()) { return null; }
+        event.begin();
+        event.phaseStart = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * Marks the end of the drain
+     *
+     * @param points the number of points drained
+     */
+    public static void drained(Object flush, int points) {
+        if (flush == null) { return; }
+        FlushEvent event = (FlushEvent) flush;
+        long now = System.nanoTime();
+        event.points = points;
+        event.drainTime += now - event.phaseStart;
+        event.phaseStart = now;
+    }
+
+    /**
+     * Marks the end of rendering a range of points
+     *
+     * @param chunks the rendered chunks, before they are handed to a sender
+     */
+    public static void encoded(Object flush, List<ByteBuf> chunks) {
+        if (flush == null) { return; }
+        FlushEvent event = (FlushEvent) flush;
+        long now = System.nanoTime();
+        event.encodeTime += now - event.phaseStart;
+        event.chunks += chunks.size();
+        for (ByteBuf chunk : chunks) { event.bytes += chunk.readableBytes(); }
+        event.phaseStart = now;
+    }
+
+    /**
+     * Marks the end of handing chunks to a sender
+     */
+    public static void written(Object flush) {
+        if (flush == null) { return; }
+        ((FlushEvent) flush).phaseStart = System.nanoTime();
+    }
+
+    public static void commitFlush(Object flush, int senders, boolean parallel) {
+        if (flush == null) { return; }
+        FlushEvent event = (FlushEvent) flush;
+        event.senders = senders;
+        event.parallel = parallel;
+        event.commit();
+    }
+
+    /**
+     * @param reason why the chunk couldn't be written ie write_queue_full
+     * @param bytes the size of the discarded chunk
+     */
+    public static void writeStall(String host, int port, String reason, long bytes) {
+        if (!AVAILABLE) { return; }
+        WriteStallEvent event = new WriteStallEvent();
+        if (!event.shouldCommit()) { return; }
+        event.host = host;
+        event.port = port;
+        event.reason = reason;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    /**
+     * @return the disconnect in progress or null if disconnects aren't being recorded
+     */
+    public static Object beginDisconnect(String host, int port) {
+        if (!AVAILABLE) { return null; }
+        DisconnectEvent event = new DisconnectEvent();
+        if (!event.isEnabled()) { return null; }
+        event.begin();
+        event.host = host;
+        event.port = port;
+        return event;
+    }
+
+    public static void reconnectAttempted(Object disconnect) {
+        if (disconnect != null) { ((DisconnectEvent) disconnect).attempts++; }
+    }
+
+    public static void commitDisconnect(Object disconnect) {
+        if (disconnect != null) { ((DisconnectEvent) disconnect).commit(); }
+    }
+
+    /**
+     * Count a metric discarded on ingest, beginning a new drop event if there isn't one in progress
+     *
+     * @param drops the drop event in progress, null for none
+     * @param rateLimited true if a rate limit discarded the metric, false if the backlog was full
+     * @return the drop event in progress or null if drops aren't being recorded
+     */
+    public static Object dropped(Object drops, boolean rateLimited) {
+        if (!AVAILABLE) { return null; }
+        OverloadDropEvent event = (OverloadDropEvent) drops;
+        if (event == null) {
+            event = new OverloadDropEvent();
+            if (!event.isEnabled()) { return null; }
+            event.begin();
+        }
+        if (rateLimited) { event.rateLimited++; }
+        else { event.backlogFull++; }
+        return event;
+    }
+
+    /**
+     * @param backlogSize the number of metrics queued when the drop event ends
+     */
+    public static void commitDrops(Object drops, int backlogSize) {
+        if (drops == null) { return; }
+        OverloadDropEvent event = (OverloadDropEvent) drops;
+        event.backlogSize = backlogSize;
+        event.commit();
+    }
+
+    /**
+     * @return the ingest in progress or null if ingest isn't being recorded
+     */
+    public static Object beginIngest() {
+        if (!AVAILABLE) { return null; }
+        IngestEvent event = new IngestEvent();
+        if (!event.isEnabled()) { return null; }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param address the address the metric came in on
+     * @param error why the metric was discarded, null if it was queued
+     */
+    public static void commitIngest(Object ingest, String address, String error) {
+        if (ingest == null) { return; }
+        IngestEvent event = (IngestEvent) ingest;
+        event.end();
+        if (!event.shouldCommit()) { return; }
+        event.address = address;
+        event.error = error == null ? "" : error;
+        event.commit();
+    }
+}
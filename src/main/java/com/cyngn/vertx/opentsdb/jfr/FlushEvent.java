@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A drain of the backlog rendered and handed to the senders, the event's duration covers the whole cycle from the
+ *  drain to the last chunk written
+ */
+@Name("com.cyngn.vertx.opentsdb.Flush")
+@Label("OpenTsDb Flush")
+@Category({"Vert.x", "OpenTsDb"})
+@Description("Points drained from the backlog, rendered into put commands and written to the TSD senders")
+class FlushEvent extends jdk.jfr.Event {
+    @Label("Points")
+    int points;
+
+    @Label("Chunks")
+    int chunks;
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    long bytes;
+
+    @Label("Senders")
+    int senders;
+
+    @Label("Parallel")
+    @Description("The drain was rendered in segments on the encode pool")
+    boolean parallel;
+
+    @Label("Drain Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long drainTime;
+
+    @Label("Encode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long encodeTime;
+
+    // start of the current phase, not recorded
+    transient long phaseStart;
+}
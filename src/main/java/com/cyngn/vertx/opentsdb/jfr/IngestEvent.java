@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Parsing and queueing a metric sent over the event bus, only slow ones are recorded by default
+ */
+@Name("com.cyngn.vertx.opentsdb.Ingest")
+@Label("OpenTsDb Ingest")
+@Category({"Vert.x", "OpenTsDb"})
+@Description("A metric parsed off the event bus and queued in the backlog")
+@Threshold("1 ms")
+@StackTrace(false)
+class IngestEvent extends jdk.jfr.Event {
+    @Label("Address")
+    String address;
+
+    @Label("Error")
+    @Description("Why the metric was discarded, empty if it was queued")
+    String error;
+}
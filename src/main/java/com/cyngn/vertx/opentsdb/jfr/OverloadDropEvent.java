@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Metrics discarded on ingest, counted from the first drop until the next flush so an overload is one event per flush
+ *  interval rather than one per metric
+ */
+@Name("com.cyngn.vertx.opentsdb.OverloadDrop")
+@Label("OpenTsDb Overload Drop")
+@Category({"Vert.x", "OpenTsDb"})
+@Description("Metrics discarded because the backlog was full or a rate limit was exceeded")
+@StackTrace(false)
+class OverloadDropEvent extends jdk.jfr.Event {
+    @Label("Backlog Full")
+    long backlogFull;
+
+    @Label("Rate Limited")
+    long rateLimited;
+
+    @Label("Backlog Size")
+    int backlogSize;
+}
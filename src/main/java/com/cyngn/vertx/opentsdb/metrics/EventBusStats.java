@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.spi.metrics.EventBusMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts event bus traffic and how many delivered messages are still waiting on their handler.
+ */
+class EventBusStats implements EventBusMetrics<Void> {
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder replyFailures = new LongAdder();
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder handlers = new LongAdder();
+
+    @Override
+    public Void handlerRegistered(String address, boolean replyHandler) {
+        handlers.increment();
+        return null;
+    }
+
+    @Override
+    public void handlerUnregistered(Void handler) {
+        handlers.decrement();
+    }
+
+    @Override
+    public void beginHandleMessage(Void handler, boolean local) {
+        pending.decrement();
+    }
+
+    @Override
+    public void endHandleMessage(Void handler, Throwable failure) {
+        handled.increment();
+        if (failure != null) { failures.increment(); }
+    }
+
+    @Override
+    public void messageSent(String address, boolean publish, boolean local, boolean remote) {
+        if (publish) { published.increment(); }
+        else { sent.increment(); }
+    }
+
+    @Override
+    public void messageReceived(String address, boolean publish, boolean local, int handlers) {
+        received.increment();
+        // each handler a message is delivered to handles it on its own context
+        pending.add(handlers);
+    }
+
+    @Override
+    public void messageWritten(String address, int numberOfBytes) { }
+
+    @Override
+    public void messageRead(String address, int numberOfBytes) { }
+
+    @Override
+    public void replyFailure(String address, ReplyFailure failure) {
+        replyFailures.increment();
+    }
+
+    /**
+     * Counters are reported as the number since the last report, pending and handlers as their current value
+     */
+    void report(long timestamp, MetricWriter writer) {
+        writer.write("vertx.eventbus.messages", "type=sent", timestamp, sent.sumThenReset());
+        writer.write("vertx.eventbus.messages", "type=published", timestamp, published.sumThenReset());
+        writer.write("vertx.eventbus.messages", "type=received", timestamp, received.sumThenReset());
+        writer.write("vertx.eventbus.messages", "type=handled", timestamp, handled.sumThenReset());
+        writer.write("vertx.eventbus.failures", "type=handler", timestamp, failures.sumThenReset());
+        writer.write("vertx.eventbus.failures", "type=reply", timestamp, replyFailures.sumThenReset());
+        writer.write("vertx.eventbus.pending", "", timestamp, Math.max(0, pending.sum()));
+        writer.write("vertx.eventbus.handlers", "", timestamp, handlers.sum());
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void close() { }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram cheap enough to record on hot paths, a record is a bucket lookup from the value's leading zeros
+ *  and a couple of uncontended adds.
+ *
+ * Buckets split every power of two into 4, so a percentile is reported as the top of its bucket and is never more
+ *  than 25% above the true value. The histogram is reset each time it is reported so every report covers the period
+ *  since the last one.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) { buckets[i] = new LongAdder(); }
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) { value = 0; }
+        buckets[index(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) { return (int) value; }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) { return index; }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long lowerBound = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    /**
+     * Write the count, mean, max, median and 99th percentile recorded since the last report and reset, ie
+     *  name.count, name.mean, name.max, name.p50 and name.p99
+     *
+     * @param name the metric name
+     * @param tags the tags specific to the histogram, can be empty
+     * @param timestamp the timestamp to report at
+     * @param unit what to divide values by when they are reported, ie 1000000 to report nanos as milliseconds
+     * @param writer where to write the metrics
+     */
+    public void report(String name, String tags, long timestamp, double unit, MetricWriter writer) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sumThenReset();
+            count += counts[i];
+        }
+        long total = sum.sumThenReset();
+        long largest = max.getThenReset();
+
+        writer.write(name + ".count", tags, timestamp, count);
+        if (count == 0) { return; }
+
+        writer.write(name + ".mean", tags, timestamp, total / (double) count / unit);
+        writer.write(name + ".max", tags, timestamp, largest / unit);
+        writer.write(name + ".p50", tags, timestamp, percentile(counts, count, 0.5, largest) / unit);
+        writer.write(name + ".p99", tags, timestamp, percentile(counts, count, 0.99, largest) / unit);
+    }
+
+    private static long percentile(long[] counts, long count, double percentile, long largest) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) { return Math.min(upperBound(i), largest); }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.spi.metrics.HttpServerMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request latency, response codes, connections and bytes for the HTTP servers listening on one port. The request
+ *  metric is just the time the request began.
+ */
+class HttpServerStats implements HttpServerMetrics<Long, Void, Void> {
+    private static final double NANOS_PER_MILLI = 1000000;
+
+    private final String tags;
+    private final Histogram latency = new Histogram();
+    private final LongAdder[] responses;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    HttpServerStats(int port) {
+        tags = "port=" + port;
+        // 1xx through 5xx
+        responses = new LongAdder[5];
+        for (int i = 0; i < responses.length; i++) { responses[i] = new LongAdder(); }
+    }
+
+    @Override
+    public Long requestBegin(Void socketMetric, HttpServerRequest request) {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void responseEnd(Long requestMetric, HttpServerResponse response) {
+        if (requestMetric != null) { latency.record(System.nanoTime() - requestMetric); }
+        int statusClass = response.getStatusCode() / 100 - 1;
+        if (statusClass >= 0 && statusClass < responses.length) { responses[statusClass].increment(); }
+    }
+
+    @Override
+    public Void connected(Void socketMetric, ServerWebSocket serverWebSocket) {
+        return null;
+    }
+
+    @Override
+    public void disconnected(Void serverWebSocketMetric) { }
+
+    @Override
+    public Void connected(SocketAddress remoteAddress) {
+        connections.increment();
+        return null;
+    }
+
+    @Override
+    public void disconnected(Void socketMetric, SocketAddress remoteAddress) {
+        connections.decrement();
+    }
+
+    @Override
+    public void bytesRead(Void socketMetric, SocketAddress remoteAddress, long numberOfBytes) {
+        bytesRead.add(numberOfBytes);
+    }
+
+    @Override
+    public void bytesWritten(Void socketMetric, SocketAddress remoteAddress, long numberOfBytes) {
+        bytesWritten.add(numberOfBytes);
+    }
+
+    @Override
+    public void exceptionOccurred(Void socketMetric, SocketAddress remoteAddress, Throwable t) {
+        errors.increment();
+    }
+
+    /**
+     * Latency is reported in milliseconds, counters as the number since the last report
+     */
+    void report(long timestamp, MetricWriter writer) {
+        latency.report("vertx.http.server.latency", tags, timestamp, NANOS_PER_MILLI, writer);
+        for (int i = 0; i < responses.length; i++) {
+            writer.write("vertx.http.server.responses", tags + " status=" + (i + 1) + "xx", timestamp,
+                    responses[i].sumThenReset());
+        }
+        writer.write("vertx.http.server.connections", tags, timestamp, connections.sum());
+        writer.write("vertx.http.server.bytes", tags + " direction=read", timestamp, bytesRead.sumThenReset());
+        writer.write("vertx.http.server.bytes", tags + " direction=written", timestamp, bytesWritten.sumThenReset());
+        writer.write("vertx.http.server.errors", tags, timestamp, errors.sumThenReset());
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void close() { }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Samples heap, memory pool, GC, buffer pool, thread, class and process stats from the platform MXBeans.
+ *
+ * The MXBeans and the series keys for every metric are looked up once up front, so a sample is just the MXBean reads
+ *  and the points themselves. GC counts and times are cumulative in the MXBeans, they are reported as the change since
+ *  the last sample so they can be graphed and summed as is.
+ *
+ * Not thread safe, samples are taken from the reporter's context.
+ */
+public class JvmCollector {
+    public static final long DEFAULT_INTERVAL_MILLI = 10000;
+
+    private final MetricWriter writer;
+    private final MemoryMXBean memory;
+    private final List<MemoryPoolMXBean> memoryPools;
+    private final List<GarbageCollectorMXBean> collectors;
+    private final List<BufferPoolMXBean> bufferPools;
+    private final ThreadMXBean threads;
+    private final ClassLoadingMXBean classes;
+    private final OperatingSystemMXBean os;
+
+    private final MetricWriter.Key heapUsed;
+    private final MetricWriter.Key heapCommitted;
+    private final MetricWriter.Key heapMax;
+    private final MetricWriter.Key nonHeapUsed;
+    private final MetricWriter.Key nonHeapCommitted;
+    private final MetricWriter.Key[] poolUsed;
+    private final MetricWriter.Key[] gcCount;
+    private final MetricWriter.Key[] gcTime;
+    private final long[] lastGcCount;
+    private final long[] lastGcTime;
+    private final MetricWriter.Key[] bufferCount;
+    private final MetricWriter.Key[] bufferUsed;
+    private final MetricWriter.Key[] bufferCapacity;
+    private final MetricWriter.Key threadsLive;
+    private final MetricWriter.Key threadsDaemon;
+    private final MetricWriter.Key threadsPeak;
+    private final MetricWriter.Key classesLoaded;
+    private final MetricWriter.Key loadAverage;
+    private final MetricWriter.Key processCpu;
+    private final MetricWriter.Key openFiles;
+    private final MetricWriter.Key maxFiles;
+
+    /**
+     * @param writer where to write the samples
+     */
+    public JvmCollector(MetricWriter writer) {
+        this.writer = writer;
+        memory = ManagementFactory.getMemoryMXBean();
+        memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+        collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        threads = ManagementFactory.getThreadMXBean();
+        classes = ManagementFactory.getClassLoadingMXBean();
+        os = ManagementFactory.getOperatingSystemMXBean();
+
+        heapUsed = writer.key("jvm.heap.used", "");
+        heapCommitted = writer.key("jvm.heap.committed", "");
+        heapMax = writer.key("jvm.heap.max", "");
+        nonHeapUsed = writer.key("jvm.nonheap.used", "");
+        nonHeapCommitted = writer.key("jvm.nonheap.committed", "");
+
+        poolUsed = new MetricWriter.Key[memoryPools.size()];
+        for (int i = 0; i < poolUsed.length; i++) {
+            poolUsed[i] = writer.key("jvm.memory.pool.used", "pool=" + tagValue(memoryPools.get(i).getName()));
+        }
+
+        gcCount = new MetricWriter.Key[collectors.size()];
+        gcTime = new MetricWriter.Key[collectors.size()];
+        lastGcCount = new long[collectors.size()];
+        lastGcTime = new long[collectors.size()];
+        for (int i = 0; i < collectors.size(); i++) {
+            String tags = "gc=" + tagValue(collectors.get(i).getName());
+            gcCount[i] = writer.key("jvm.gc.count", tags);
+            gcTime[i] = writer.key("jvm.gc.time", tags);
+            // the first sample covers the time since the collector was created
+            lastGcCount[i] = Math.max(0, collectors.get(i).getCollectionCount());
+            lastGcTime[i] = Math.max(0, collectors.get(i).getCollectionTime());
+        }
+
+        bufferCount = new MetricWriter.Key[bufferPools.size()];
+        bufferUsed = new MetricWriter.Key[bufferPools.size()];
+        bufferCapacity = new MetricWriter.Key[bufferPools.size()];
+        for (int i = 0; i < bufferPools.size(); i++) {
+            String tags = "pool=" + tagValue(bufferPools.get(i).getName());
+            bufferCount[i] = writer.key("jvm.buffers.count", tags);
+            bufferUsed[i] = writer.key("jvm.buffers.used", tags);
+            bufferCapacity[i] = writer.key("jvm.buffers.capacity", tags);
+        }
+
+        threadsLive = writer.key("jvm.threads.live", "");
+        threadsDaemon = writer.key("jvm.threads.daemon", "");
+        threadsPeak = writer.key("jvm.threads.peak", "");
+        classesLoaded = writer.key("jvm.classes.loaded", "");
+        loadAverage = writer.key("process.load.average", "");
+        processCpu = writer.key("process.cpu.load", "");
+        openFiles = writer.key("process.files.open", "");
+        maxFiles = writer.key("process.files.max", "");
+    }
+
+    /**
+     * OpenTsDb only allows letters, digits and '-_./' in tag values, ie 'G1 Young Generation' is sent as
+     *  'G1_Young_Generation'
+     */
+    static String tagValue(String name) {
+        StringBuilder value = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-'
+                    || c == '_' || c == '.' || c == '/';
+            value.append(valid ? c : '_');
+        }
+        return value.toString();
+    }
+
+    /**
+     * Take a sample and write it
+     *
+     * @param timestamp the timestamp to write the sample at
+     */
+    public void collect(long timestamp) {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        writer.write(heapUsed, timestamp, heap.getUsed());
+        writer.write(heapCommitted, timestamp, heap.getCommitted());
+        if (heap.getMax() >= 0) { writer.write(heapMax, timestamp, heap.getMax()); }
+
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        writer.write(nonHeapUsed, timestamp, nonHeap.getUsed());
+        writer.write(nonHeapCommitted, timestamp, nonHeap.getCommitted());
+
+        for (int i = 0; i < poolUsed.length; i++) {
+            MemoryUsage usage = memoryPools.get(i).getUsage();
+            if (usage != null) { writer.write(poolUsed[i], timestamp, usage.getUsed()); }
+        }
+
+        for (int i = 0; i < gcCount.length; i++) {
+            long count = collectors.get(i).getCollectionCount();
+            long time = collectors.get(i).getCollectionTime();
+            // -1 means the collector doesn't track it
+            if (count >= 0) {
+                writer.write(gcCount[i], timestamp, count - lastGcCount[i]);
+                lastGcCount[i] = count;
+            }
+            if (time >= 0) {
+                writer.write(gcTime[i], timestamp, time - lastGcTime[i]);
+                lastGcTime[i] = time;
+            }
+        }
+
+        for (int i = 0; i < bufferCount.length; i++) {
+            BufferPoolMXBean pool = bufferPools.get(i);
+            writer.write(bufferCount[i], timestamp, pool.getCount());
+            writer.write(bufferUsed[i], timestamp, pool.getMemoryUsed());
+            writer.write(bufferCapacity[i], timestamp, pool.getTotalCapacity());
+        }
+
+        writer.write(threadsLive, timestamp, threads.getThreadCount());
+        writer.write(threadsDaemon, timestamp, threads.getDaemonThreadCount());
+        writer.write(threadsPeak, timestamp, threads.getPeakThreadCount());
+        writer.write(classesLoaded, timestamp, classes.getLoadedClassCount());
+        collectProcess(timestamp);
+    }
+
+    /**
+     * Negative values mean the platform doesn't support the stat
+     */
+    private void collectProcess(long timestamp) {
+        double load = os.getSystemLoadAverage();
+        if (load >= 0) { writer.write(loadAverage, timestamp, load); }
+
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            if (cpu >= 0) { writer.write(processCpu, timestamp, cpu); }
+        }
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean) os;
+            writer.write(openFiles, timestamp, unix.getOpenFileDescriptorCount());
+            writer.write(maxFiles, timestamp, unix.getMaxFileDescriptorCount());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import com.cyngn.vertx.opentsdb.Metric;
+import com.cyngn.vertx.opentsdb.MetricSink;
+
+/**
+ * Turns values collected in process into metrics under the reporter's prefix and default tags and hands them to the
+ *  reporter's ingest path, so they are queued, batched and sent along with everything else without going over the
+ *  event bus.
+ */
+public class MetricWriter {
+    /**
+     * The most tags a collector adds to the default tags
+     */
+    public static final int MAX_EXTRA_TAGS = 2;
+
+    private final String prefix;
+    private final String defaultTags;
+    private final MetricSink sink;
+
+    /**
+     * A metric name and tags resolved once against the prefix and default tags, so a collector that reports the same
+     *  series every interval hands the backlog the same strings each time
+     */
+    public static class Key {
+        private final String name;
+        private final String fullName;
+        private final String tags;
+
+        private Key(String name, String fullName, String tags) {
+            this.name = name;
+            this.fullName = fullName;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * @param prefix the prefix to pre-pend to metric names, null or empty for none
+     * @param defaultTags the tags every metric is sent with
+     * @param defaultTagCount the number of default tags
+     * @param maxTags the max tags OpenTsDb accepts
+     * @param sink where the metrics go
+     * @throws IllegalArgumentException if there are no default tags or no room for the collectors' own tags
+     */
+    public MetricWriter(String prefix, String defaultTags, int defaultTagCount, int maxTags, MetricSink sink) {
+        // OpenTsDb needs at least one tag and not every collected metric has its own
+        if (defaultTagCount == 0) {
+            throw new IllegalArgumentException("Collected metrics need at least one default tag");
+        }
+        if (defaultTagCount + MAX_EXTRA_TAGS > maxTags) {
+            throw new IllegalArgumentException("Collected metrics need room for " + MAX_EXTRA_TAGS
+                    + " tags beyond the default tags");
+        }
+        this.prefix = prefix == null || prefix.length() == 0 ? "" : prefix + ".";
+        this.defaultTags = defaultTags;
+        this.sink = sink;
+    }
+
+    /**
+     * @param name the metric name, before the prefix is applied
+     * @param tags the tags to add to the default tags, can be empty
+     */
+    public void write(String name, String tags, long timestamp, long value) {
+        sink.accept(name, Metric.ofLong(prefix + name, getTags(tags), timestamp, value));
+    }
+
+    /**
+     * @param name the metric name, before the prefix is applied
+     * @param tags the tags to add to the default tags, can be empty
+     */
+    public void write(String name, String tags, long timestamp, double value) {
+        sink.accept(name, Metric.ofDouble(prefix + name, getTags(tags), timestamp, value));
+    }
+
+    /**
+     * @param name the metric name, before the prefix is applied
+     * @param tags the tags to add to the default tags, can be empty
+     * @return the key to write the series with
+     */
+    public Key key(String name, String tags) {
+        return new Key(name, prefix + name, getTags(tags));
+    }
+
+    public void write(Key key, long timestamp, long value) {
+        sink.accept(key.name, Metric.ofLong(key.fullName, key.tags, timestamp, value));
+    }
+
+    public void write(Key key, long timestamp, double value) {
+        sink.accept(key.name, Metric.ofDouble(key.fullName, key.tags, timestamp, value));
+    }
+
+    private String getTags(String tags) {
+        return tags == null || tags.length() == 0 ? defaultTags : defaultTags + " " + tags;
+    }
+}
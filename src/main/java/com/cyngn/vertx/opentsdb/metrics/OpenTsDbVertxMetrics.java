@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import io.vertx.core.Context;
+import io.vertx.core.Verticle;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.metrics.impl.DummyVertxMetrics;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.spi.metrics.EventBusMetrics;
+import io.vertx.core.spi.metrics.HttpServerMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Vert.x metrics SPI implementation that records event loop lag, event bus traffic and HTTP server latencies into in
+ *  process counters and histograms. Nothing is sent when a measurement is taken, a reporter with `vertxMetrics`
+ *  configured writes everything recorded since its last flush into its backlog on each flush.
+ *
+ * Vert.x has no hook for event loop lag, it is measured by a timer on each event loop that records how late it fires.
+ *  The probes are started by the reporter so they don't run in a Vert.x instance nothing is reporting from.
+ *
+ * Clients, net servers and datagram sockets aren't measured.
+ */
+public class OpenTsDbVertxMetrics extends DummyVertxMetrics {
+    private static final double NANOS_PER_MILLI = 1000000;
+
+    private final Vertx vertx;
+    private final int eventLoops;
+    private final LongAdder verticles = new LongAdder();
+    private final LongAdder timers = new LongAdder();
+    private final Histogram eventLoopLag = new Histogram();
+    private final Map<Integer, HttpServerStats> httpServers = new ConcurrentHashMap<>();
+    private volatile EventBusStats eventBus;
+    private volatile boolean probing;
+
+    /**
+     * @param vertx the Vert.x instance being measured
+     * @param options its options
+     */
+    public OpenTsDbVertxMetrics(Vertx vertx, VertxOptions options) {
+        this.vertx = vertx;
+        eventLoops = options.getEventLoopPoolSize();
+    }
+
+    /**
+     * @param vertx the Vert.x instance
+     * @return its metrics if they are recorded by this module, otherwise null
+     */
+    public static OpenTsDbVertxMetrics get(Vertx vertx) {
+        Object metrics = ((VertxInternal) vertx).metricsSPI();
+        return metrics instanceof OpenTsDbVertxMetrics ? (OpenTsDbVertxMetrics) metrics : null;
+    }
+
+    @Override
+    public void verticleDeployed(Verticle verticle) {
+        verticles.increment();
+    }
+
+    @Override
+    public void verticleUndeployed(Verticle verticle) {
+        verticles.decrement();
+    }
+
+    @Override
+    public void timerCreated(long id) {
+        timers.increment();
+    }
+
+    @Override
+    public void timerEnded(long id, boolean cancelled) {
+        timers.decrement();
+    }
+
+    @Override
+    public EventBusMetrics<Void> createMetrics(EventBus eventBus) {
+        EventBusStats stats = new EventBusStats();
+        this.eventBus = stats;
+        return stats;
+    }
+
+    /**
+     * Servers sharing a port, ie one per verticle instance, share their stats
+     */
+    @Override
+    public HttpServerMetrics<Long, Void, Void> createMetrics(HttpServer server, SocketAddress localAddress,
+            HttpServerOptions options) {
+        return httpServers.computeIfAbsent(localAddress.port(), HttpServerStats::new);
+    }
+
+    /**
+     * Start measuring how late a timer on each event loop fires, does nothing if already started
+     *
+     * @param intervalMilli how often to measure
+     */
+    public synchronized void startLagProbes(long intervalMilli) {
+        if (probing) { return; }
+        probing = true;
+
+        // new event loop contexts are handed event loops round robin, so one per loop covers them all
+        for (int i = 0; i < eventLoops; i++) {
+            Context context = ((VertxInternal) vertx).createEventLoopContext(null, new JsonObject(),
+                    Thread.currentThread().getContextClassLoader());
+            context.runOnContext(v -> probe(intervalMilli));
+        }
+    }
+
+    private void probe(long intervalMilli) {
+        if (!probing) { return; }
+        long scheduled = System.nanoTime();
+        vertx.setTimer(intervalMilli, timerId -> {
+            eventLoopLag.record(System.nanoTime() - scheduled - intervalMilli * (long) NANOS_PER_MILLI);
+            probe(intervalMilli);
+        });
+    }
+
+    public synchronized void stopLagProbes() {
+        probing = false;
+    }
+
+    /**
+     * Write everything recorded since the last report, latencies are in milliseconds and counters are the number since
+     *  the last report
+     *
+     * @param timestamp the timestamp to report at
+     * @param writer where to write the metrics
+     */
+    public void report(long timestamp, MetricWriter writer) {
+        if (probing) { eventLoopLag.report("vertx.eventloop.lag", "", timestamp, NANOS_PER_MILLI, writer); }
+        writer.write("vertx.verticles", "", timestamp, verticles.sum());
+        writer.write("vertx.timers", "", timestamp, timers.sum());
+
+        EventBusStats stats = eventBus;
+        if (stats != null) { stats.report(timestamp, writer); }
+        httpServers.values().forEach(server -> server.report(timestamp, writer));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean isMetricsEnabled() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        stopLagProbes();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import com.cyngn.vertx.opentsdb.client.OpenTsDbClient;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetServer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs against local stand-ins for TSD, no OpenTsDb needed
+ */
+@RunWith(VertxUnitRunner.class)
+public class HostManagerTests {
+
+    private Vertx vertx;
+    private NetServer server1;
+    private NetServer server2;
+    private HostManager hostManager;
+
+    @Before
+    public void before(TestContext context) {
+        vertx = Vertx.vertx();
+        server1 = vertx.createNetServer().connectHandler(socket -> {})
+                .listen(0, "localhost", context.asyncAssertSuccess());
+        server2 = vertx.createNetServer().connectHandler(socket -> {})
+                .listen(0, "localhost", context.asyncAssertSuccess());
+        hostManager = new HostManager(vertx, new MetricBlacklist(10, 1000));
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private JsonObject host(NetServer server) {
+        return new JsonObject().put("host", "localhost").put("port", server.actualPort());
+    }
+
+    private boolean allConnected() {
+        return hostManager.getSenders().stream().allMatch(MetricsSender::isConnected);
+    }
+
+    private void waitFor(TestContext context, BooleanSupplier condition, Runnable next) {
+        Async async = context.async();
+        vertx.setPeriodic(10, timerId -> {
+            if (condition.getAsBoolean()) {
+                vertx.cancelTimer(timerId);
+                next.run();
+                async.complete();
+            }
+        });
+    }
+
+    @Test
+    public void testUpdateHosts(TestContext context) {
+        hostManager.update(new JsonArray().add(host(server1)));
+
+        waitFor(context, () -> hostManager.getSenders().size() == 1 && allConnected(), () -> {
+            hostManager.update(new JsonArray().add(host(server1)).add(host(server2)));
+
+            waitFor(context, () -> hostManager.getSenders().size() == 2 && allConnected(), () -> {
+                OpenTsDbClient removed = (OpenTsDbClient) hostManager.getSenders().get(0);
+                MetricsSender remaining = hostManager.getSenders().get(1);
+                hostManager.update(new JsonArray().add(host(server2)));
+
+                waitFor(context, () -> hostManager.getSenders().size() == 1, () ->
+                        context.assertTrue(remaining == hostManager.getSenders().get(0)));
+                // the removed client's net client is closed along with its socket rather than leaked
+                waitFor(context, removed::isClosed, () -> {});
+            });
+        });
+    }
+
+    @Test
+    public void testClientsOnOwnContexts(TestContext context) {
+        hostManager.update(new JsonArray().add(host(server1)).add(host(server2)));
+
+        waitFor(context, () -> hostManager.getSenders().size() == 2 && allConnected(), () -> {
+            Context first = ((OpenTsDbClient) hostManager.getSenders().get(0)).getContext();
+            Context second = ((OpenTsDbClient) hostManager.getSenders().get(1)).getContext();
+
+            context.assertTrue(first.isEventLoopContext());
+            context.assertTrue(second.isEventLoopContext());
+            context.assertFalse(first == second);
+            context.assertFalse(first == vertx.getOrCreateContext());
+        });
+    }
+
+    @Test
+    public void testInvalidHosts(TestContext context) {
+        try {
+            hostManager.update(new JsonArray().add(new JsonObject().put("host", "localhost")));
+            context.fail("Expected a missing port to be rejected");
+        } catch (IllegalArgumentException ex) {
+            context.assertEquals(0, hostManager.getSenders().size());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatestValueCacheTests {
+
+    private static Metric metric(String name, String tags, long timestamp, long value) {
+        return Metric.ofLong(name, tags, timestamp, value);
+    }
+
+    @Test
+    public void testMostRecentPoints() {
+        LatestValueCache cache = new LatestValueCache(2, LatestValueCache.DEFAULT_MAX_BYTES);
+        cache.record(metric("api.time", "host=a", 1, 10));
+        cache.record(metric("api.time", "host=a", 2, 20));
+        cache.record(Metric.ofDouble("api.time", "host=a", 3, 30.5));
+
+        JsonArray series = cache.query("api.time", false, null, 10);
+        assertEquals(1, series.size());
+        JsonObject latest = series.getJsonObject(0);
+        assertEquals(new JsonObject().put("host", "a"), latest.getJsonObject("tags"));
+
+        JsonArray points = latest.getJsonArray("points");
+        assertEquals(2, points.size());
+        assertEquals(3L, (long) points.getJsonObject(0).getLong("timestamp"));
+        assertEquals(30.5, points.getJsonObject(0).getDouble("value"), 0);
+        assertEquals(20L, (long) points.getJsonObject(1).getLong("value"));
+    }
+
+    @Test
+    public void testFilters() {
+        LatestValueCache cache = new LatestValueCache(1, LatestValueCache.DEFAULT_MAX_BYTES);
+        cache.record(metric("api.time", "host=a type=t", 1, 1));
+        cache.record(metric("api.time", "host=ab type=t", 1, 2));
+        cache.record(metric("api.count", "host=a", 1, 3));
+        cache.record(metric("db.time", "host=a", 1, 4));
+
+        assertEquals(1, cache.query("api.time", false, new JsonObject().put("host", "a"), 10).size());
+        assertEquals(2, cache.query("api.time", false, new JsonObject().put("type", "t"), 10).size());
+        assertEquals(0, cache.query("api.time", false, new JsonObject().put("host", "b"), 10).size());
+        assertEquals(3, cache.query("api.", true, null, 10).size());
+        assertEquals(2, cache.query("api.", true, new JsonObject().put("host", "a"), 10).size());
+        assertEquals(1, cache.query("api.", true, null, 1).size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUpdated() {
+        String tags = "host=a";
+        long seriesBytes = LatestValueCache.SERIES_OVERHEAD_BYTES + 2 * ("m1".length() + tags.length())
+                + LatestValueCache.POINT_BYTES;
+        LatestValueCache cache = new LatestValueCache(1, seriesBytes * 2);
+
+        cache.record(metric("m1", tags, 1, 1));
+        cache.record(metric("m2", tags, 1, 1));
+        // m1 becomes the most recently updated so m2 goes
+        cache.record(metric("m1", tags, 2, 2));
+        cache.record(metric("m3", tags, 1, 1));
+
+        assertEquals(2, cache.size());
+        assertEquals(seriesBytes * 2, cache.bytes());
+        assertEquals(1, cache.query("m1", false, null, 10).size());
+        assertEquals(0, cache.query("m2", false, null, 10).size());
+        assertEquals(1, cache.query("m3", false, null, 10).size());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.test.fakecluster.FakeClusterManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs a three node cluster in one JVM, with a reporter on the first two nodes and only a producer on the third
+ */
+@RunWith(VertxUnitRunner.class)
+public class LocalConsumerTests {
+    private static final String ADDRESS = "local.metrics";
+
+    private Vertx[] nodes;
+
+    @Before
+    public void before(TestContext context) {
+        nodes = new Vertx[3];
+        Async async = context.async();
+        startNode(context, 0, async);
+    }
+
+    private void startNode(TestContext context, int index, Async async) {
+        if (index == nodes.length) {
+            async.complete();
+            return;
+        }
+
+        Vertx.clusteredVertx(new VertxOptions().setClusterManager(new FakeClusterManager()),
+                context.asyncAssertSuccess(vertx -> {
+                    nodes[index] = vertx;
+                    if (index == nodes.length - 1) {
+                        startNode(context, index + 1, async);
+                        return;
+                    }
+
+                    JsonObject config = new JsonObject().put("address", ADDRESS).put("localConsumer", true)
+                            .put("tags", new JsonObject().put("node", String.valueOf(index)))
+                            .put("latestValues", new JsonObject());
+                    vertx.deployVerticle(OpenTsDbReporter.class.getName(), new DeploymentOptions().setConfig(config),
+                            context.asyncAssertSuccess(id -> startNode(context, index + 1, async)));
+                }));
+    }
+
+    @After
+    public void after(TestContext context) {
+        for (Vertx node : nodes) {
+            if (node != null) { node.close(context.asyncAssertSuccess()); }
+        }
+        FakeClusterManager.reset();
+    }
+
+    private static JsonObject add(String name) {
+        return new JsonObject().put("action", OpenTsDbReporter.ADD_COMMAND).put("name", name).put("value", 1);
+    }
+
+    private static void queryLatest(Vertx node, String name, Handler<JsonArray> handler) {
+        JsonObject query = new JsonObject().put("action", OpenTsDbReporter.QUERY_LATEST_COMMAND).put("name", name);
+        node.eventBus().<JsonObject>send(ADDRESS, query, result -> handler.handle(result.succeeded()
+                ? result.result().body().getJsonArray("series") : null));
+    }
+
+    @Test
+    public void testLocalAffinity(TestContext context) {
+        Async async = context.async();
+        int count = 10;
+        int[] replies = {0};
+        for (int i = 0; i < count; i++) {
+            nodes[0].eventBus().<String>send(ADDRESS, add("test.local"), result -> {
+                context.assertTrue(result.succeeded());
+                if (++replies[0] < count) { return; }
+
+                // every point was handled by the reporter on the sending node
+                queryLatest(nodes[0], "test.local", local -> {
+                    context.assertEquals(1, local.size());
+                    context.assertEquals("0", local.getJsonObject(0).getJsonObject("tags").getString("node"));
+                    queryLatest(nodes[1], "test.local", remote -> {
+                        context.assertEquals(0, remote.size());
+                        async.complete();
+                    });
+                });
+            });
+        }
+    }
+
+    @Test
+    public void testClusterFallback(TestContext context) {
+        Async async = context.async();
+        LocalFirstSender.<String>send(nodes[2].eventBus(), ADDRESS, add("test.fallback"), result -> {
+            context.assertTrue(result.succeeded());
+
+            // the node without a reporter had its point handled by one of the others
+            queryLatest(nodes[0], "test.fallback", first -> queryLatest(nodes[1], "test.fallback", second -> {
+                context.assertEquals(1, first.size() + second.size());
+                async.complete();
+            }));
+        });
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricBacklogTests {
+
+    private static Metric metric(String name) {
+        return Metric.ofLong(name, "foo=bar", 1431000000000L, 1);
+    }
+
+    private static List<String> names(PointBatch batch) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) { names.add(batch.getSeries(i).getName()); }
+        return names;
+    }
+
+    @Test
+    public void testDrainOrder() {
+        MetricBacklog backlog = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        backlog.add(metric("bulk"), MetricPriority.BULK);
+        backlog.add(metric("normal"), MetricPriority.NORMAL);
+        backlog.add(metric("critical"), MetricPriority.CRITICAL);
+
+        PointBatch batch = backlog.drain(Integer.MAX_VALUE);
+        assertEquals(3, batch.size());
+        assertEquals(Arrays.asList("critical", "normal", "bulk"), names(batch));
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void testShedLowestFirst() {
+        MetricBacklog backlog = new MetricBacklog(2);
+        assertTrue(backlog.add(metric("bulk"), MetricPriority.BULK));
+        assertTrue(backlog.add(metric("normal"), MetricPriority.NORMAL));
+
+        // full, the bulk metric makes way
+        assertTrue(backlog.add(metric("critical"), MetricPriority.CRITICAL));
+        assertEquals(0, backlog.size(MetricPriority.BULK));
+
+        // full, nothing lower to shed
+        assertFalse(backlog.add(metric("bulk"), MetricPriority.BULK));
+
+        assertTrue(backlog.add(metric("critical"), MetricPriority.CRITICAL));
+        assertEquals(0, backlog.size(MetricPriority.NORMAL));
+        assertFalse(backlog.add(metric("normal"), MetricPriority.NORMAL));
+        assertEquals(2, backlog.size());
+    }
+
+    @Test
+    public void testWeightedDrain() {
+        MetricBacklog backlog = new MetricBacklog(MetricBacklog.UNBOUNDED, new int[]{2, 1, 1});
+        for (int i = 0; i < 10; i++) {
+            backlog.add(metric("critical"), MetricPriority.CRITICAL);
+            backlog.add(metric("bulk"), MetricPriority.BULK);
+        }
+
+        // critical gets half the flush, bulk a quarter and the unused normal share goes to critical
+        List<String> drained = names(backlog.drain(8));
+        assertEquals(8, drained.size());
+        assertEquals(6, drained.stream().filter("critical"::equals).count());
+        assertEquals(2, drained.stream().filter("bulk"::equals).count());
+        assertEquals(12, backlog.size());
+    }
+
+    @Test
+    public void testByteBudget() {
+        MetricBacklog unbounded = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        unbounded.add(metric("test.value"), MetricPriority.NORMAL);
+        long firstPointBytes = unbounded.bytes();
+
+        // a second point of the same series only costs the point itself
+        unbounded.add(metric("test.value"), MetricPriority.NORMAL);
+        assertEquals(firstPointBytes + MetricBacklog.POINT_BYTES, unbounded.bytes());
+
+        MetricBacklog backlog = new MetricBacklog(MetricBacklog.UNBOUNDED, firstPointBytes + MetricBacklog.POINT_BYTES,
+                SheddingPolicy.DROP_NEWEST, MetricBacklog.defaultWeights());
+        assertTrue(backlog.add(metric("test.value"), MetricPriority.NORMAL));
+        assertTrue(backlog.add(metric("test.value"), MetricPriority.NORMAL));
+        assertFalse(backlog.add(metric("test.value"), MetricPriority.NORMAL));
+
+        assertEquals(1, backlog.getAndResetRejected());
+        assertEquals(0, backlog.getAndResetRejected());
+
+        backlog.drain(Integer.MAX_VALUE);
+        assertEquals(0, backlog.bytes());
+    }
+
+    @Test
+    public void testDropOldest() {
+        MetricBacklog backlog = new MetricBacklog(2, MetricBacklog.UNBOUNDED, SheddingPolicy.DROP_OLDEST,
+                MetricBacklog.defaultWeights());
+        assertTrue(backlog.add(metric("a"), MetricPriority.NORMAL));
+        assertTrue(backlog.add(metric("b"), MetricPriority.NORMAL));
+        assertTrue(backlog.add(metric("c"), MetricPriority.NORMAL));
+        assertEquals(1, backlog.getAndResetShed());
+
+        assertEquals(Arrays.asList("b", "c"), names(backlog.drain(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testSampling() {
+        MetricBacklog backlog = new MetricBacklog(100, MetricBacklog.UNBOUNDED, SheddingPolicy.SAMPLE,
+                MetricBacklog.defaultWeights());
+        for (int i = 0; i < 1000; i++) { backlog.add(metric("bulk"), MetricPriority.BULK); }
+
+        // everything is accepted until sampling kicks in at half full
+        assertTrue(backlog.size() >= 50);
+        assertTrue(backlog.size() <= 100);
+        assertEquals(1000 - backlog.size(), backlog.getAndResetRejected());
+
+        // critical metrics aren't sampled, they shed the bulk metrics instead
+        for (int i = 0; i < 100; i++) { assertTrue(backlog.add(metric("critical"), MetricPriority.CRITICAL)); }
+        assertEquals(0, backlog.size(MetricPriority.BULK));
+    }
+
+    @Test
+    public void testColumnarRoundTrip() {
+        MetricBacklog backlog = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        backlog.add(Metric.ofLong("test.value", "foo=bar", 1431000000000L, 17), MetricPriority.NORMAL);
+        backlog.add(Metric.ofDouble("test.value", "foo=bar", 1431000000001L, 34.4), MetricPriority.NORMAL);
+        backlog.add(Metric.ofLong("test.value", "foo=baz", 1431000000002L, -3), MetricPriority.NORMAL);
+        assertEquals(2, backlog.seriesCount());
+
+        PointBatch batch = backlog.drain(Integer.MAX_VALUE);
+        ByteBuf out = Unpooled.buffer();
+        for (int i = 0; i < batch.size(); i++) { batch.writeLine(i, out); }
+
+        assertEquals("put test.value 1431000000000 17 foo=bar\n"
+                + "put test.value 1431000000001 34.4 foo=bar\n"
+                + "put test.value 1431000000002 -3 foo=baz\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSeriesSweep() {
+        MetricBacklog backlog = new MetricBacklog(MetricBacklog.UNBOUNDED, MetricBacklog.UNBOUNDED,
+                SheddingPolicy.DROP_NEWEST, MetricBacklog.defaultWeights(), 4);
+        for (int i = 0; i < 4; i++) { backlog.add(metric("drained." + i), MetricPriority.NORMAL); }
+        backlog.drain(Integer.MAX_VALUE);
+        assertEquals(4, backlog.seriesCount());
+
+        // at capacity the drained series are swept out before a new one is added
+        backlog.add(metric("queued"), MetricPriority.NORMAL);
+        assertEquals(1, backlog.seriesCount());
+        assertEquals(Arrays.asList("queued"), names(backlog.drain(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPriorityRules() {
+        PriorityRules rules = new PriorityRules(new JsonArray()
+                .add(new JsonObject().put("prefix", "api.slo.").put("priority", "critical"))
+                .add(new JsonObject().put("prefix", "debug.").put("priority", "BULK")));
+
+        assertEquals(MetricPriority.CRITICAL, rules.getPriority("api.slo.latency"));
+        assertEquals(MetricPriority.BULK, rules.getPriority("debug.cache.size"));
+        assertEquals(MetricPriority.NORMAL, rules.getPriority("api.add_item.time"));
+    }
+}
@@ -188,4 +188,56 @@ public class MetricsParserTests  {
         assertTrue(Pattern.compile("put test.service.test.value \\d* 17 foo=bar tag1=val1 tag2=val2\\n").matcher(result).matches());
         assertTrue(count == 0);
     }
+
+    @Test
+    public void blacklistedMetricTest() {
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbReporter.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+
+        Message<JsonObject> msg = getTestMessage(metric);
+
+        MetricBlacklist blacklist = new MetricBlacklist(10, 60000);
+        MetricsParser parser = new MetricsParser("test.service", "foo=bar", blacklist, errorHandler);
+        assertTrue(parser.createMetricString(msg) != null);
+
+        blacklist.add("test.service.test.value");
+        String result = parser.createMetricString(msg);
+
+        assertEquals(null, result);
+        assertTrue(count == 1);
+    }
+
+    @Test
+    public void numericValueTest() {
+        MetricsParser parser = new MetricsParser(null, "foo=bar", errorHandler);
+        JsonObject metric = new JsonObject().put("name", "test.value");
+
+        assertEquals(17L, parser.parse(getTestMessage(metric.copy().put("value", 17))).getRawValue());
+        assertEquals(5000000000L, parser.parse(getTestMessage(metric.copy().put("value", 5000000000L))).getRawValue());
+
+        Metric doubleMetric = parser.parse(getTestMessage(metric.copy().put("value", 150.23)));
+        assertTrue(doubleMetric.isFloat());
+        assertEquals(150.23, doubleMetric.getValue(), 0);
+
+        // integers too big for a long are still valid values
+        Metric bigMetric = parser.parse(getTestMessage(metric.copy().put("value", "99999999999999999999")));
+        assertTrue(bigMetric.isFloat());
+        assertEquals(99999999999999999999d, bigMetric.getValue(), 0);
+        assertEquals(0, count.intValue());
+    }
+
+    @Test
+    public void nonFiniteValueTest() {
+        MetricsParser parser = new MetricsParser(null, "foo=bar", errorHandler);
+        JsonObject metric = new JsonObject().put("name", "test.value");
+
+        assertEquals(null, parser.parse(getTestMessage(metric.copy().put("value", Double.NaN))));
+        assertEquals(null, parser.parse(getTestMessage(metric.copy().put("value", Double.POSITIVE_INFINITY))));
+        assertEquals(null, parser.parse(getTestMessage(metric.copy().put("value", "NaN"))));
+        assertEquals(null, parser.parse(getTestMessage(metric.copy().put("value", "-Infinity"))));
+        assertEquals(null, parser.parse(getTestMessage(metric.copy().put("value", true))));
+        assertTrue(count == 5);
+    }
 }
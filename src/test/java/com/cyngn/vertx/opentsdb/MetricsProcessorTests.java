@@ -15,16 +15,25 @@
 package com.cyngn.vertx.opentsdb;
 
 import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author truelove@cyngn.com (Jeremy Truelove) 11/10/14
@@ -38,9 +47,14 @@ public class MetricsProcessorTests {
     private MetricsProcessor processor;
     private AtomicInteger count3;
     private MetricsSender sender3;
+    private Metric metric;
+    private String testStr;
 
     @Before
     public void setUp(){
+        metric = Metric.ofLong("test.value", "foo=bar", 1431000000000L, 17);
+        testStr = metric.toPutString();
+
         count = new AtomicInteger(0);
         sender = new MetricsSender() {
             @Override
@@ -80,14 +94,13 @@ public class MetricsProcessorTests {
 
     @Test
     public void testProcessing() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
 
         // add more data into queue
-        data.add(testStr);
-        data.add(testStr);
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
 
-        processor = new MetricsProcessor(Arrays.asList(sender), testStr.getBytes().length * 3, null);
+        processor = new MetricsProcessor(Arrays.asList(sender), testStr.length() * 3, null);
 
         processor.processMetrics(data);
         assertEquals(count.intValue(), 1);
@@ -97,13 +110,12 @@ public class MetricsProcessorTests {
 
     @Test
     public void testMaxBuffer() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
 
-        data.add(testStr);
-        data.add(testStr);
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
 
-        processor = new MetricsProcessor(Arrays.asList(sender), testStr.getBytes().length, null);
+        processor = new MetricsProcessor(Arrays.asList(sender), testStr.length(), null);
         processor.processMetrics(data);
 
         assertEquals(count.intValue(), 2);
@@ -111,19 +123,229 @@ public class MetricsProcessorTests {
 
     @Test
     public void testMultipleWorkers() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
 
-        data.add(testStr);
-        data.add(testStr);
-        data.add(testStr);
-        data.add(testStr);
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
 
-        processor = new MetricsProcessor(Arrays.asList(sender, sender2, sender3), (testStr.getBytes().length * 2) + 1, null);
+        processor = new MetricsProcessor(Arrays.asList(sender, sender2, sender3), (testStr.length() * 2) + 1, null);
         processor.processMetrics(data);
 
         assertEquals(count.intValue(), 1);
         assertEquals(count2.intValue(), 1);
         assertEquals(count3.intValue(), 1);
     }
+
+    @Test
+    public void testPooledBufferReleased() {
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
+
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
+
+        List<ByteBuf> written = new ArrayList<>();
+        MetricsSender pooledSender = new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { return true; }
+            @Override
+            public boolean write(ByteBuf data) { written.add(data); return true; }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+
+        processor = new MetricsProcessor(Arrays.asList(pooledSender), testStr.length() * 3, null);
+        processor.processMetrics(data);
+
+        assertEquals(1, written.size());
+        ByteBuf buffer = written.get(0);
+        assertTrue(buffer.isDirect());
+        assertEquals(testStr + testStr, buffer.toString(StandardCharsets.UTF_8));
+
+        // ownership passes to the sender, which hands it to the socket to release
+        assertEquals(1, buffer.refCnt());
+        buffer.release();
+    }
+
+    @Test
+    public void testDisconnectedSenders() {
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
+
+        data.add(metric, MetricPriority.NORMAL);
+        data.add(metric, MetricPriority.NORMAL);
+
+        AtomicInteger disconnectedCount = new AtomicInteger(0);
+        MetricsSender disconnected = new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { disconnectedCount.incrementAndGet(); return false; }
+            @Override
+            public boolean isConnected() { return false; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+
+        // nothing is up yet so the metrics stay queued
+        processor = new MetricsProcessor(Arrays.asList(disconnected), testStr.length() * 3, null);
+        processor.processMetrics(data);
+        assertEquals(2, data.size());
+        assertEquals(0, disconnectedCount.intValue());
+
+        // only connected senders get data
+        processor = new MetricsProcessor(Arrays.asList(disconnected, sender), testStr.length() * 3, null);
+        processor.processMetrics(data);
+        assertEquals(0, data.size());
+        assertEquals(0, disconnectedCount.intValue());
+        assertEquals(1, count.intValue());
+    }
+
+    @Test
+    public void testSenderBatchSize() {
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        for (int i = 0; i < 6; i++) { data.add(metric, MetricPriority.NORMAL); }
+
+        MetricsSender tunedSender = new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { count.incrementAndGet(); return true; }
+            @Override
+            public int getBatchSize(int configuredSize) { return testStr.length() * 3; }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+
+        // the sender's own size wins over the configured one
+        processor = new MetricsProcessor(Arrays.asList(tunedSender), testStr.length(), null);
+        processor.processMetrics(data);
+        assertEquals(2, count.intValue());
+    }
+
+    @Test
+    public void testParallelEncoding() throws Exception {
+        int points = 25000;
+        MetricBacklog sequentialData = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        MetricBacklog parallelData = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        for (int i = 0; i < points; i++) {
+            Metric point = Metric.ofLong("test.value", "foo=bar", 1431000000000L + i, i);
+            sequentialData.add(point, MetricPriority.NORMAL);
+            parallelData.add(point, MetricPriority.NORMAL);
+        }
+
+        StringBuilder expected1 = new StringBuilder();
+        StringBuilder expected2 = new StringBuilder();
+        processor = new MetricsProcessor(Arrays.asList(recordingSender(expected1, null),
+                recordingSender(expected2, null)), 1500, null);
+        processor.processMetrics(sequentialData);
+
+        // rendering is split into segments on the pool and handed back to the flushing context in order
+        Vertx vertx = Vertx.vertx();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CountDownLatch latch = new CountDownLatch(points);
+            StringBuilder actual1 = new StringBuilder();
+            StringBuilder actual2 = new StringBuilder();
+            MetricsProcessor parallelProcessor = new MetricsProcessor(Arrays.asList(recordingSender(actual1, latch),
+                    recordingSender(actual2, latch)), 1500, Integer.MAX_VALUE, 1000, pool, null);
+            vertx.runOnContext(v -> parallelProcessor.processMetrics(parallelData));
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(0, parallelData.size());
+            assertEquals(expected1.toString(), actual1.toString());
+            assertEquals(expected2.toString(), actual2.toString());
+        } finally {
+            pool.shutdown();
+            vertx.close();
+        }
+    }
+
+    @Test
+    public void testWritablePoints() {
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        for (int i = 0; i < 4; i++) { data.add(metric, MetricPriority.NORMAL); }
+
+        processor = new MetricsProcessor(Arrays.asList(sender, sender2), testStr.length() * 3, null);
+        // nothing rendered yet so lines are guessed at, each sender can still take at least one point
+        assertEquals(2, processor.getWritablePoints());
+
+        processor.processMetrics(data);
+        assertEquals(6, processor.getWritablePoints());
+    }
+
+    @Test
+    public void testCancelEncode() throws Exception {
+        int points = 2000;
+        MetricBacklog data = new MetricBacklog(MetricBacklog.UNBOUNDED);
+        for (int i = 0; i < points; i++) {
+            data.add(Metric.ofLong("test.value", "foo=bar", 1431000000000L + i, i), MetricPriority.NORMAL);
+        }
+
+        Vertx vertx = Vertx.vertx();
+        ForkJoinPool pool = new ForkJoinPool(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        try {
+            // hold up the pool so the drain is still being rendered when it is cancelled
+            pool.execute(() -> {
+                try { blocker.await(); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            });
+
+            StringBuilder output = new StringBuilder();
+            MetricsProcessor parallelProcessor = new MetricsProcessor(Arrays.asList(recordingSender(output, null)),
+                    1500, Integer.MAX_VALUE, 1000, pool, null);
+            CountDownLatch cancelled = new CountDownLatch(1);
+            List<PointBatch> abandoned = new ArrayList<>();
+            vertx.runOnContext(v -> {
+                parallelProcessor.processMetrics(data);
+                assertTrue(parallelProcessor.isEncoding());
+                abandoned.add(parallelProcessor.cancelEncode());
+                cancelled.countDown();
+            });
+            assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+
+            blocker.countDown();
+            assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+            // the rendered drain is handed back on the context, after which nothing has been written
+            CountDownLatch handedBack = new CountDownLatch(1);
+            vertx.runOnContext(v -> handedBack.countDown());
+            assertTrue(handedBack.await(10, TimeUnit.SECONDS));
+
+            assertEquals(points, abandoned.get(0).size());
+            assertEquals(0, output.length());
+            assertFalse(parallelProcessor.isEncoding());
+        } finally {
+            blocker.countDown();
+            pool.shutdown();
+            vertx.close();
+        }
+    }
+
+    private MetricsSender recordingSender(StringBuilder output, CountDownLatch linesWritten) {
+        return new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) {
+                String lines = data.toString(StandardCharsets.UTF_8.name());
+                synchronized (output) { output.append(lines); }
+                if (linesWritten != null) {
+                    for (int i = 0; i < lines.length(); i++) {
+                        if (lines.charAt(i) == '\n') { linesWritten.countDown(); }
+                    }
+                }
+                return true;
+            }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+    }
 }
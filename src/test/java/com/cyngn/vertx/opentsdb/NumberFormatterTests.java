@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NumberFormatterTests {
+
+    private static String formatLong(long value) {
+        ByteBuf out = Unpooled.buffer(4);
+        NumberFormatter.writeLong(out, value);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static String formatDouble(double value) {
+        ByteBuf out = Unpooled.buffer(4);
+        NumberFormatter.writeDouble(out, value);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testLongs() {
+        for (long value : new long[] {0, 7, -7, 10, 99, 100, 1431000000000L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(Long.toString(value), formatLong(value));
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        assertEquals("150.23", formatDouble(150.23));
+        assertEquals("150.0", formatDouble(150));
+        assertEquals("-0.5", formatDouble(-0.5));
+        assertEquals("0.0", formatDouble(0));
+        assertEquals("-0.0", formatDouble(-0.0));
+        assertEquals("0.002", formatDouble(0.002));
+        assertEquals("0.1", formatDouble(0.1));
+        assertEquals("0.30000000000000004", formatDouble(0.1 + 0.2));
+        assertEquals("1.0E20", formatDouble(1e20));
+        assertEquals("1.0E-10", formatDouble(1e-10));
+    }
+
+    @Test
+    public void testDoublesRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(24) - 6);
+            String formatted = formatDouble(value);
+            assertEquals(formatted, value, Double.parseDouble(formatted), 0);
+            assertTrue(formatted, formatted.contains("."));
+        }
+    }
+}
@@ -148,6 +148,16 @@ public class OpenTsDbReporterTests {
         });
     }
 
+    @Test
+    public void testReplicaStatusWithoutReplicas(TestContext context) throws Exception {
+        Async async = context.async();
+        eb.send(topic, new JsonObject().put("action", OpenTsDbReporter.REPLICA_STATUS_COMMAND), result -> {
+            context.assertTrue(result.failed());
+            context.assertEquals("No replica sets are configured", result.cause().getMessage());
+            async.complete();
+        });
+    }
+
     @Test
     public void testSendMany(TestContext context) throws Exception {
         JsonObject metric = new JsonObject();
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PutLineParserTests {
+
+    private final List<Metric> metrics = new ArrayList<>();
+    private final PutLineParser parser = new PutLineParser(2, null);
+
+    private String parse(String arguments) {
+        Buffer line = Buffer.buffer("put " + arguments);
+        return parser.parse(line, 4, line.length(), this::add);
+    }
+
+    private String add(String name, Metric metric) {
+        metrics.add(metric);
+        return null;
+    }
+
+    @Test
+    public void testValidLines() {
+        assertNull(parse("sys.cpu.user 1356998400 42.5 host=web01 cpu=0"));
+        assertNull(parse("sys.cpu.nice 1356998400123 -7 host=web01"));
+
+        assertEquals("put sys.cpu.user 1356998400000 42.5 host=web01 cpu=0\n", metrics.get(0).toPutString());
+        assertEquals("put sys.cpu.nice 1356998400123 -7 host=web01\n", metrics.get(1).toPutString());
+    }
+
+    @Test
+    public void testInvalidLines() {
+        assertEquals("not enough arguments (need at least 4, got 3)", parse("sys.cpu.user 1356998400 42.5"));
+        assertEquals("invalid metric name", parse("sys@cpu 1356998400 1 host=a"));
+        assertEquals("invalid timestamp", parse("sys.cpu 13569984 1 host=a"));
+        assertEquals("invalid value: abc", parse("sys.cpu 1356998400 abc host=a"));
+        assertEquals("invalid value: NaN", parse("sys.cpu 1356998400 NaN host=a"));
+        assertEquals("invalid tag: host", parse("sys.cpu 1356998400 1 host"));
+        assertEquals("invalid tag: ", parse("sys.cpu 1356998400 1 host=a  cpu=0"));
+        assertEquals("too many tags, max is 2", parse("sys.cpu 1356998400 1 a=1 b=2 c=3"));
+        assertEquals(0, metrics.size());
+    }
+
+    @Test
+    public void testBlacklisted() {
+        MetricBlacklist blacklist = new MetricBlacklist(10, 60000);
+        blacklist.add("sys.cpu");
+        Buffer line = Buffer.buffer("put sys.cpu 1356998400 1 host=a");
+
+        assertEquals("metric sys.cpu was rejected by OpenTsDb", new PutLineParser(8, blacklist).parse(line, 4,
+                line.length(), this::add));
+    }
+
+    @Test
+    public void testSinkRejected() {
+        Buffer line = Buffer.buffer("put sys.cpu 1356998400 1 host=a");
+
+        // the sink's own reason is passed back
+        assertEquals("Rate limit exceeded, discarding metric", parser.parse(line, 4, line.length(),
+                (name, metric) -> "Rate limit exceeded, discarding metric"));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTests {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static JsonObject limit(double pointsPerSecond, double burst) {
+        return new JsonObject().put("pointsPerSecond", pointsPerSecond).put("burst", burst);
+    }
+
+    @Test
+    public void testTokenBucket() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(10, 5, 0);
+
+        // starts full, the burst is taken straight away
+        for (int i = 0; i < 5; i++) { assertTrue(bucket.tryAcquire(0)); }
+        assertFalse(bucket.tryAcquire(0));
+
+        // refills at one token every 100ms
+        assertFalse(bucket.tryAcquire(SECOND / 20));
+        assertTrue(bucket.tryAcquire(SECOND / 10));
+        assertFalse(bucket.tryAcquire(SECOND / 10));
+
+        // never holds more than the burst
+        long later = 10 * SECOND;
+        for (int i = 0; i < 5; i++) { assertTrue(bucket.tryAcquire(later)); }
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    public void testMetricLimits() {
+        RateLimiter limiter = new RateLimiter(new JsonObject().put("metrics", new JsonArray()
+                .add(limit(1, 2).put("name", "api.debug.*"))
+                .add(limit(1, 1).put("name", "api.exact"))), 0);
+
+        assertTrue(limiter.tryAcquireMetric("api.debug.a", 0));
+        assertTrue(limiter.tryAcquireMetric("api.debug.b", 0));
+        // the prefix shares one bucket
+        assertFalse(limiter.tryAcquireMetric("api.debug.c", 0));
+
+        assertTrue(limiter.tryAcquireMetric("api.exact", 0));
+        assertFalse(limiter.tryAcquireMetric("api.exact", 0));
+
+        // not limited
+        for (int i = 0; i < 100; i++) { assertTrue(limiter.tryAcquireMetric("api.exact.time", 0)); }
+
+        JsonObject drops = limiter.getAndResetDrops();
+        assertEquals(2L, (long) drops.getLong("dropped"));
+        assertEquals(1L, (long) drops.getJsonObject("metrics").getLong("api.debug.*"));
+        assertEquals(1L, (long) drops.getJsonObject("metrics").getLong("api.exact"));
+        assertEquals(0L, (long) limiter.getAndResetDrops().getLong("dropped"));
+    }
+
+    @Test
+    public void testSourceLimits() {
+        RateLimiter limiter = new RateLimiter(new JsonObject().put("sources", limit(1, 2)), 0);
+
+        assertTrue(limiter.tryAcquireSource("noisy", 0));
+        assertTrue(limiter.tryAcquireSource("noisy", 0));
+        assertFalse(limiter.tryAcquireSource("noisy", 0));
+
+        // every source has its own bucket
+        assertTrue(limiter.tryAcquireSource("quiet", 0));
+
+        // producers that don't identify themselves share one
+        assertTrue(limiter.tryAcquireSource(null, 0));
+        assertTrue(limiter.tryAcquireSource(null, 0));
+        assertFalse(limiter.tryAcquireSource(null, 0));
+
+        JsonObject drops = limiter.getAndResetDrops();
+        assertEquals(2L, (long) drops.getLong("dropped"));
+        assertEquals(1L, (long) drops.getJsonObject("sources").getLong("noisy"));
+        assertEquals(1L, (long) drops.getJsonObject("sources").getLong(RateLimiter.UNATTRIBUTED));
+        assertEquals(3, limiter.sourceCount());
+    }
+
+    @Test
+    public void testSourcesBounded() {
+        RateLimiter limiter = new RateLimiter(new JsonObject().put("sources", limit(1, 1).put("maxSources", 100)), 0);
+        for (int i = 0; i < 10000; i++) { limiter.tryAcquireSource("source." + i, 0); }
+        assertTrue(limiter.sourceCount() <= 100);
+    }
+
+    @Test
+    public void testNoLimits() {
+        RateLimiter limiter = new RateLimiter(null, 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquireMetric("test", 0));
+            assertTrue(limiter.tryAcquireSource("source", 0));
+        }
+        assertEquals(0L, (long) limiter.getAndResetDrops().getLong("dropped"));
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        JsonObject[] invalid = {
+                new JsonObject().put("metrics", new JsonArray().add(limit(1, 1))),
+                new JsonObject().put("metrics", new JsonArray().add("api.*")),
+                new JsonObject().put("metrics", new JsonArray().add(new JsonObject().put("name", "api.*"))),
+                new JsonObject().put("sources", limit(0, 1)),
+                new JsonObject().put("sources", limit(1, 0))
+        };
+
+        for (JsonObject config : invalid) {
+            try {
+                new RateLimiter(config);
+                fail("Expected invalid limits to be rejected: " + config.encode());
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
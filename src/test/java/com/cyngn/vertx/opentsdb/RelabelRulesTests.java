@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RelabelRulesTests {
+
+    private static JsonObject rule(String action, String name) {
+        return new JsonObject().put("action", action).put("name", name);
+    }
+
+    private static Metric metric(String name, String tags) {
+        return Metric.ofLong(name, tags, 1431000000000L, 1);
+    }
+
+    @Test
+    public void testDrop() {
+        RelabelRules rules = new RelabelRules(new JsonArray().add(rule("drop", "api.debug.*"))
+                .add(rule("drop", "api.exact")));
+
+        assertNull(rules.apply(metric("api.debug.cache", "foo=bar")));
+        assertNull(rules.apply(metric("api.exact", "foo=bar")));
+        Metric kept = metric("api.exact.time", "foo=bar");
+        assertSame(kept, rules.apply(kept));
+    }
+
+    @Test
+    public void testKeep() {
+        RelabelRules rules = new RelabelRules(new JsonArray().add(rule("keep", "api.*"))
+                .add(rule("drop", "api.debug.*")));
+
+        assertEquals("api.get.time", rules.apply(metric("api.get.time", "foo=bar")).getName());
+        assertNull(rules.apply(metric("api.debug.cache", "foo=bar")));
+        assertNull(rules.apply(metric("jvm.heap", "foo=bar")));
+    }
+
+    @Test
+    public void testRename() {
+        RelabelRules rules = new RelabelRules(new JsonArray()
+                .add(rule("rename", "legacy.api.*").put("to", "api."))
+                .add(rule("rename", "legacy.api.count").put("to", "api.requests")));
+
+        Metric renamed = rules.apply(Metric.ofDouble("legacy.api.time", "foo=bar", 1431000000000L, 2.5));
+        assertEquals("api.time", renamed.getName());
+        assertEquals("foo=bar", renamed.getTags());
+        assertEquals(1431000000000L, renamed.getTimestamp());
+
+        // the exact rule beats the shorter prefix
+        assertEquals("api.requests", rules.apply(metric("legacy.api.count", "foo=bar")).getName());
+        assertEquals("api.count.total", rules.apply(metric("legacy.api.count.total", "foo=bar")).getName());
+    }
+
+    @Test
+    public void testMostSpecificWins() {
+        RelabelRules rules = new RelabelRules(new JsonArray().add(rule("drop", "api.*"))
+                .add(rule("rename", "api.slo.*").put("to", "slo.")));
+
+        assertNull(rules.apply(metric("api.get.time", "foo=bar")));
+        assertEquals("slo.latency", rules.apply(metric("api.slo.latency", "foo=bar")).getName());
+    }
+
+    @Test
+    public void testTagDrop() {
+        RelabelRules rules = new RelabelRules(new JsonArray()
+                .add(new JsonObject().put("action", "tag_drop").put("tag", "request_id")));
+
+        assertEquals("a=1 c=3", rules.apply(metric("test", "a=1 request_id=2 c=3")).getTags());
+        assertEquals("c=3", rules.apply(metric("test", "request_id=2 c=3")).getTags());
+        assertEquals("a=1", rules.apply(metric("test", "a=1 request_id=2")).getTags());
+
+        // nothing left to tag it with
+        assertNull(rules.apply(metric("test", "request_id=2")));
+
+        Metric untouched = metric("test", "a=1 request=2");
+        assertSame(untouched, rules.apply(untouched));
+    }
+
+    @Test
+    public void testTagRewrite() {
+        RelabelRules rules = new RelabelRules(new JsonArray()
+                .add(new JsonObject().put("action", "tag_rewrite").put("tag", "host").put("value", "web01.internal")
+                        .put("to", "web01"))
+                .add(new JsonObject().put("action", "tag_rewrite").put("tag", "env").put("to", "prod")));
+
+        assertEquals("host=web01 a=1", rules.apply(metric("test", "host=web01.internal a=1")).getTags());
+        assertEquals("a=1 env=prod", rules.apply(metric("test", "a=1 env=production")).getTags());
+
+        Metric untouched = metric("test", "host=web02.internal");
+        assertSame(untouched, rules.apply(untouched));
+    }
+
+    @Test
+    public void testHits() {
+        RelabelRules rules = new RelabelRules(new JsonArray().add(rule("drop", "debug.*"))
+                .add(new JsonObject().put("action", "tag_drop").put("tag", "request_id")));
+
+        rules.apply(metric("debug.a", "foo=bar"));
+        rules.apply(metric("debug.b", "foo=bar"));
+        rules.apply(metric("api.a", "foo=bar request_id=1"));
+
+        JsonArray hits = rules.getAndResetHits();
+        assertEquals(2L, (long) hits.getJsonObject(0).getLong("hits"));
+        assertEquals("debug.*", hits.getJsonObject(0).getString("name"));
+        assertEquals(1L, (long) hits.getJsonObject(1).getLong("hits"));
+        assertEquals(0L, (long) rules.getAndResetHits().getJsonObject(0).getLong("hits"));
+    }
+
+    @Test
+    public void testNoRules() {
+        RelabelRules rules = new RelabelRules(null);
+        assertTrue(rules.isEmpty());
+
+        Metric metric = metric("test", "foo=bar");
+        assertSame(metric, rules.apply(metric));
+    }
+
+    @Test
+    public void testInvalidRules() {
+        JsonArray[] invalid = {
+                new JsonArray().add("drop"),
+                new JsonArray().add(rule("explode", "api.*")),
+                new JsonArray().add(rule("drop", "*")),
+                new JsonArray().add(rule("rename", "api.*")),
+                new JsonArray().add(new JsonObject().put("action", "tag_drop")),
+                new JsonArray().add(new JsonObject().put("action", "tag_rewrite").put("tag", "host"))
+        };
+
+        for (JsonArray rules : invalid) {
+            try {
+                new RelabelRules(rules);
+                fail("Expected invalid rules to be rejected: " + rules.encode());
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.MetricsSender;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicaSetTests {
+
+    /**
+     * Records what is written as long as it is marked writable, holding on to the buffers like a socket would
+     */
+    private static class HeldSender implements MetricsSender {
+        private final List<ByteBuf> written = new ArrayList<>();
+        private boolean writable = true;
+
+        @Override
+        public boolean write(Buffer data) { return false; }
+        @Override
+        public boolean write(ByteBuf data) { written.add(data); return true; }
+        @Override
+        public boolean isConnected() { return true; }
+        @Override
+        public boolean isWritable() { return writable; }
+        @Override
+        public void close() { }
+        @Override
+        public void dumpStats() { }
+
+        private List<String> lines() {
+            List<String> lines = new ArrayList<>();
+            for (ByteBuf data : written) { lines.add(data.toString(StandardCharsets.UTF_8)); }
+            return lines;
+        }
+
+        private void releaseAll() {
+            written.forEach(ByteBuf::release);
+            written.clear();
+        }
+    }
+
+    private static ByteBuf chunk(String data) {
+        ByteBuf chunk = PooledByteBufAllocator.DEFAULT.directBuffer(data.length());
+        chunk.writeBytes(data.getBytes(StandardCharsets.UTF_8));
+        return chunk;
+    }
+
+    @Test
+    public void testRoundRobin() {
+        HeldSender first = new HeldSender();
+        HeldSender second = new HeldSender();
+        ReplicaSet replicaSet = new ReplicaSet("primary", Arrays.asList(first, second), 1000,
+                SheddingPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 4; i++) { assertTrue(replicaSet.offer(chunk("chunk" + i), 0)); }
+        replicaSet.flush();
+
+        assertEquals(Arrays.asList("chunk0", "chunk2"), first.lines());
+        assertEquals(Arrays.asList("chunk1", "chunk3"), second.lines());
+        assertEquals(0, replicaSet.queuedBytes());
+        first.releaseAll();
+        second.releaseAll();
+    }
+
+    @Test
+    public void testBackpressure() {
+        HeldSender slow = new HeldSender();
+        HeldSender fast = new HeldSender();
+        ReplicaSet replicaSet = new ReplicaSet("dr", Arrays.asList(slow, fast), 1000, SheddingPolicy.DROP_NEWEST);
+
+        slow.writable = false;
+        replicaSet.offer(chunk("a"), 100);
+        replicaSet.offer(chunk("b"), 200);
+        replicaSet.flush();
+        // everything goes to the host with room
+        assertEquals(Arrays.asList("a", "b"), fast.lines());
+
+        fast.writable = false;
+        replicaSet.offer(chunk("c"), 300);
+        replicaSet.flush();
+        assertEquals(1, replicaSet.getStatus(500).getInteger("queuedChunks").intValue());
+        assertEquals(200, replicaSet.getLagMilli(500));
+
+        slow.writable = true;
+        replicaSet.flush();
+        assertEquals(Arrays.asList("c"), slow.lines());
+        assertEquals(0, replicaSet.getLagMilli(500));
+        assertEquals(3L, (long) replicaSet.getStatus(500).getLong("chunksWritten"));
+        slow.releaseAll();
+        fast.releaseAll();
+    }
+
+    @Test
+    public void testDropPolicies() {
+        HeldSender sender = new HeldSender();
+        sender.writable = false;
+
+        ReplicaSet dropNewest = new ReplicaSet("newest", Arrays.asList(sender), 10, SheddingPolicy.DROP_NEWEST);
+        assertTrue(dropNewest.offer(chunk("12345"), 0));
+        assertTrue(dropNewest.offer(chunk("67890"), 0));
+        ByteBuf rejected = chunk("x");
+        assertFalse(dropNewest.offer(rejected, 0));
+        assertEquals(0, rejected.refCnt());
+        assertEquals(1L, (long) dropNewest.getStatus(0).getLong("dropped"));
+
+        ReplicaSet dropOldest = new ReplicaSet("oldest", Arrays.asList(sender), 10, SheddingPolicy.DROP_OLDEST);
+        ByteBuf oldest = chunk("12345");
+        dropOldest.offer(oldest, 0);
+        dropOldest.offer(chunk("67890"), 0);
+        assertTrue(dropOldest.offer(chunk("x"), 0));
+        assertEquals(0, oldest.refCnt());
+        assertEquals(6, dropOldest.queuedBytes());
+
+        sender.writable = true;
+        dropOldest.flush();
+        assertEquals(Arrays.asList("67890", "x"), sender.lines());
+        sender.releaseAll();
+        dropNewest.close();
+        assertEquals(0, dropNewest.queuedBytes());
+    }
+
+    @Test
+    public void testSharedChunks() {
+        HeldSender primary = new HeldSender();
+        HeldSender dr = new HeldSender();
+        List<ReplicaSet> replicaSets = Arrays.asList(
+                new ReplicaSet("primary", Arrays.asList(primary), 1000, SheddingPolicy.DROP_OLDEST),
+                new ReplicaSet("dr", Arrays.asList(dr), 1000, SheddingPolicy.DROP_OLDEST));
+
+        ByteBuf data = chunk("put test.value 1431000000000 17 foo=bar\n");
+        assertTrue(new ReplicatingSender(replicaSets).write(data));
+        replicaSets.forEach(ReplicaSet::flush);
+
+        // both sets were handed the same encoded bytes, each with its own reader index
+        assertEquals(primary.lines(), dr.lines());
+        assertTrue(primary.written.get(0).unwrap() == dr.written.get(0).unwrap());
+        primary.written.get(0).skipBytes(4);
+        assertEquals("put test.value 1431000000000 17 foo=bar\n", dr.lines().get(0));
+
+        // the chunk goes back to the pool once every set's host is done with it
+        primary.releaseAll();
+        assertEquals(1, data.refCnt());
+        dr.releaseAll();
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSamplingNotSupported() {
+        new ReplicaSet("dr", new ArrayList<>(), 1000, SheddingPolicy.SAMPLE);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Each test deploys a reporter with only the config its feature needs on top of the baseline config
+ */
+@RunWith(VertxUnitRunner.class)
+public class ReporterFeatureTests {
+    private static final String TOPIC = "test-opentsdb";
+    private static final String TENANT_TOPIC = "test-opentsdb.tenant";
+
+    private Vertx vertx;
+    private EventBus eb;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx();
+        eb = vertx.eventBus();
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private void deploy(TestContext context, JsonObject feature, Runnable onDeployed) {
+        JsonObject config = new JsonObject().put("address", TOPIC).put("maxTags", 1)
+                .put("hosts", new JsonArray().add(new JsonObject().put("host", "localhost").put("port", 4242)))
+                .mergeIn(feature);
+        vertx.deployVerticle(OpenTsDbReporter.class.getName(), new DeploymentOptions().setConfig(config),
+                context.asyncAssertSuccess(id -> onDeployed.run()));
+    }
+
+    private static JsonObject metric(String name, Object value, JsonObject tags) {
+        return new JsonObject().put("action", OpenTsDbReporter.ADD_COMMAND).put("name", name).put("value", value)
+                .put("tags", tags);
+    }
+
+    @Test
+    public void testNamespace(TestContext context) {
+        JsonObject namespaces = new JsonObject().put("namespaces", new JsonArray().add(new JsonObject()
+                .put("address", TENANT_TOPIC).put("prefix", "tenant").put("tags", new JsonObject().put("tenant", "a"))
+                .put("maxTags", 2)));
+
+        Async async = context.async();
+        Async async1 = context.async();
+        Async async2 = context.async();
+        deploy(context, namespaces, () -> {
+            // the namespace's default tag satisfies OpenTsDb on its own and its own max tags apply
+            eb.<String>send(TENANT_TOPIC, metric("test.value", "34.4", new JsonObject()), result -> {
+                context.assertTrue(result.succeeded());
+                context.assertEquals("Ok", result.result().body());
+                async.complete();
+            });
+
+            eb.send(TENANT_TOPIC, metric("test.value", "34.4", new JsonObject().put("foo", "bar").put("var", "val")),
+                    result -> {
+                context.assertTrue(result.failed());
+                context.assertEquals("You specified too many tags", result.cause().getMessage());
+                async1.complete();
+            });
+
+            eb.send(TENANT_TOPIC, new JsonObject().put("action", OpenTsDbReporter.UPDATE_HOSTS_COMMAND).put("hosts",
+                    new JsonArray().add(new JsonObject().put("host", "localhost").put("port", 4242))), result -> {
+                context.assertTrue(result.failed());
+                context.assertEquals("Hosts can only be updated on " + TOPIC, result.cause().getMessage());
+                async2.complete();
+            });
+        });
+    }
+
+    @Test
+    public void testQueryLatest(TestContext context) {
+        JsonObject latestValues = new JsonObject().put("latestValues", new JsonObject().put("pointsPerSeries", 2));
+        JsonObject tags = new JsonObject().put("foo", "bar");
+
+        Async async = context.async();
+        deploy(context, latestValues, () -> eb.send(TOPIC, metric("test.latest", 42, tags), added -> {
+            context.assertTrue(added.succeeded());
+
+            JsonObject query = new JsonObject().put("action", OpenTsDbReporter.QUERY_LATEST_COMMAND)
+                    .put("name", "test.lat*").put("tags", tags);
+            eb.<JsonObject>send(TOPIC, query, result -> {
+                context.assertTrue(result.succeeded());
+                JsonArray series = result.result().body().getJsonArray("series");
+                context.assertEquals(1, series.size());
+                context.assertEquals("test.latest", series.getJsonObject(0).getString("name"));
+                context.assertEquals(42L, series.getJsonObject(0).getJsonArray("points").getJsonObject(0)
+                        .getLong("value"));
+                async.complete();
+            });
+        }));
+    }
+
+    @Test
+    public void testRateLimit(TestContext context) {
+        JsonObject rateLimits = new JsonObject().put("rateLimits", new JsonObject().put("metrics", new JsonArray()
+                .add(new JsonObject().put("name", "test.limited").put("pointsPerSecond", 0.001).put("burst", 1))));
+        JsonObject metric = metric("test.limited", 1, new JsonObject().put("foo", "bar"));
+
+        Async async = context.async();
+        deploy(context, rateLimits, () -> eb.send(TOPIC, metric, first -> {
+            context.assertTrue(first.succeeded());
+            // the burst of one is used up
+            eb.send(TOPIC, metric, second -> {
+                context.assertTrue(second.failed());
+                context.assertEquals("Rate limit exceeded, discarding metric", second.cause().getMessage());
+                async.complete();
+            });
+        }));
+    }
+
+    @Test
+    public void testSourceRateLimitAfterParse(TestContext context) {
+        JsonObject rateLimits = new JsonObject().put("rateLimits", new JsonObject().put("sources", new JsonObject()
+                .put("pointsPerSecond", 0.001).put("burst", 1)));
+        JsonObject metric = metric("test.source", 1, new JsonObject().put("foo", "bar")).put("source", "job");
+        JsonObject malformed = metric.copy().put("value", "abc");
+
+        Async async = context.async();
+        deploy(context, rateLimits, () -> eb.send(TOPIC, malformed, rejected -> {
+            context.assertEquals("Invalid 'value' field: abc", rejected.cause().getMessage());
+            // the malformed message didn't use up the producer's burst of one
+            eb.send(TOPIC, metric, first -> {
+                context.assertTrue(first.succeeded());
+                eb.send(TOPIC, metric, second -> {
+                    context.assertEquals("Rate limit exceeded, discarding metric", second.cause().getMessage());
+                    async.complete();
+                });
+            });
+        }));
+    }
+}
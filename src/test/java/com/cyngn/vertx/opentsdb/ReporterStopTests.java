@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetServer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Undeploys reporters with metrics still queued, against a TSD stub and against a host that is down
+ */
+@RunWith(VertxUnitRunner.class)
+public class ReporterStopTests {
+    private static final String ADDRESS = "stop.metrics";
+    private static final int COUNT = 100;
+
+    private Vertx vertx;
+    private File spillFile;
+
+    @Before
+    public void before() throws IOException {
+        vertx = Vertx.vertx();
+        spillFile = File.createTempFile("opentsdb-spill", ".txt");
+        spillFile.delete();
+    }
+
+    @After
+    public void after(TestContext context) {
+        spillFile.delete();
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private JsonObject config(int port, long stopTimeoutMilli) {
+        return new JsonObject().put("address", ADDRESS).put("tags", new JsonObject().put("host", "a"))
+                .put("hosts", new JsonArray().add(new JsonObject().put("host", "127.0.0.1").put("port", port)))
+                .put("flushIntervalMilli", 60000).put("stopTimeoutMilli", stopTimeoutMilli)
+                .put("spillFile", spillFile.getPath());
+    }
+
+    /**
+     * Queue the metrics then undeploy, the flush interval is long enough that only the stop sends them
+     */
+    private void addAndUndeploy(TestContext context, String deploymentId, Runnable onStopped) {
+        AtomicInteger replies = new AtomicInteger();
+        for (int i = 0; i < COUNT; i++) {
+            JsonObject metric = new JsonObject().put("action", OpenTsDbReporter.ADD_COMMAND).put("name", "test.stop")
+                    .put("value", i);
+            vertx.eventBus().send(ADDRESS, metric, context.asyncAssertSuccess(reply -> {
+                if (replies.incrementAndGet() == COUNT) {
+                    vertx.undeploy(deploymentId, context.asyncAssertSuccess(v -> onStopped.run()));
+                }
+            }));
+        }
+    }
+
+    @Test
+    public void testDrainOnStop(TestContext context) {
+        Async async = context.async();
+        AtomicInteger lines = new AtomicInteger();
+        NetServer server = vertx.createNetServer().connectHandler(socket -> socket.handler(data -> {
+            for (int i = 0; i < data.length(); i++) {
+                if (data.getByte(i) == '\n') { lines.incrementAndGet(); }
+            }
+        }));
+
+        server.listen(18093, "127.0.0.1", context.asyncAssertSuccess(listening ->
+                vertx.deployVerticle(OpenTsDbReporter.class.getName(),
+                        new DeploymentOptions().setConfig(config(18093, 5000)),
+                        context.asyncAssertSuccess(id -> addAndUndeploy(context, id, () -> {
+                            context.assertFalse(spillFile.exists());
+                            vertx.setPeriodic(10, timerId -> {
+                                if (lines.get() == COUNT) { async.complete(); }
+                            });
+                        })))));
+    }
+
+    @Test
+    public void testSpillOnTimeout(TestContext context) {
+        Async async = context.async();
+        vertx.deployVerticle(OpenTsDbReporter.class.getName(), new DeploymentOptions().setConfig(config(18094, 200)),
+                context.asyncAssertSuccess(id -> {
+                    long start = System.currentTimeMillis();
+                    addAndUndeploy(context, id, () -> {
+                        context.assertTrue(System.currentTimeMillis() - start < 2000);
+                        try {
+                            List<String> spilled = Files.readAllLines(spillFile.toPath(), StandardCharsets.UTF_8);
+                            context.assertEquals(COUNT, spilled.size());
+                            context.assertTrue(spilled.get(0).startsWith("put test.stop "));
+                            context.assertTrue(spilled.get(0).endsWith(" host=a"));
+                        } catch (IOException e) {
+                            context.fail(e);
+                        }
+                        async.complete();
+                    });
+                }));
+    }
+}
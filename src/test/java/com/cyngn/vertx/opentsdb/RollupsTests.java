@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupsTests {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    // an hour boundary
+    private static final long START = 1431000000000L - 1431000000000L % HOUR;
+
+    @Test
+    public void testAggregate() {
+        Rollups rollups = new Rollups(Rollups.defaultIntervals(), 100, 0);
+        rollups.record(Metric.ofLong("api.time", "host=a", START, 10));
+        rollups.record(Metric.ofLong("api.time", "host=a", START + 1000, 30));
+        rollups.record(Metric.ofLong("api.time", "host=a", START + 2000, 20));
+        rollups.record(Metric.ofLong("api.time", "host=b", START, 5));
+        assertEquals(4, rollups.seriesCount());
+
+        // nothing has closed yet
+        assertEquals(0, rollups.close(START + MINUTE - 1).size());
+
+        JsonArray points = rollups.close(START + MINUTE);
+        assertEquals(8, points.size());
+        assertEquals(2, rollups.seriesCount());
+
+        JsonObject sum = find(points, "host", "a", "SUM");
+        assertEquals("api.time", sum.getString("metric"));
+        assertEquals(START / 1000, (long) sum.getLong("timestamp"));
+        assertEquals("1m", sum.getString("interval"));
+        assertEquals(60L, sum.getValue("value"));
+        assertEquals(3L, find(points, "host", "a", "COUNT").getValue("value"));
+        assertEquals(10L, find(points, "host", "a", "MIN").getValue("value"));
+        assertEquals(30L, find(points, "host", "a", "MAX").getValue("value"));
+        assertEquals(5L, find(points, "host", "b", "SUM").getValue("value"));
+
+        points = rollups.close(START + HOUR);
+        assertEquals(8, points.size());
+        assertEquals("1h", points.getJsonObject(0).getString("interval"));
+        assertEquals(0, rollups.seriesCount());
+    }
+
+    @Test
+    public void testFloats() {
+        Rollups rollups = new Rollups(new JsonArray().add("1m"), 100, 0);
+        rollups.record(Metric.ofLong("api.time", "host=a", START, 1));
+        rollups.record(Metric.ofDouble("api.time", "host=a", START, 0.5));
+
+        JsonArray points = rollups.close(START + MINUTE);
+        assertEquals(1.5, (double) find(points, "host", "a", "SUM").getDouble("value"), 0.0001);
+        assertEquals(0.5, (double) find(points, "host", "a", "MIN").getDouble("value"), 0.0001);
+        assertEquals(2L, find(points, "host", "a", "COUNT").getValue("value"));
+    }
+
+    @Test
+    public void testLateAndOverflow() {
+        Rollups rollups = new Rollups(new JsonArray().add("1m"), 1, 5000);
+        rollups.record(Metric.ofLong("api.time", "host=a", START, 1));
+        rollups.record(Metric.ofLong("api.time", "host=b", START, 1));
+
+        // the grace period holds the window open past its end
+        assertEquals(0, rollups.close(START + MINUTE).size());
+        assertEquals(4, rollups.close(START + MINUTE + 5000).size());
+
+        rollups.record(Metric.ofLong("api.time", "host=a", START + 1000, 1));
+        rollups.record(Metric.ofLong("api.time", "host=a", START + MINUTE, 1));
+        assertEquals(new JsonObject().put("late", 1L).put("overflow", 1L), rollups.getAndResetDrops());
+        assertEquals(new JsonObject().put("late", 0L).put("overflow", 0L), rollups.getAndResetDrops());
+        assertEquals(1, rollups.seriesCount());
+    }
+
+    @Test
+    public void testParseInterval() {
+        assertEquals(MINUTE, Rollups.parseInterval("1m"));
+        assertEquals(HOUR, Rollups.parseInterval("1h"));
+        assertEquals(15 * 1000, Rollups.parseInterval("15s"));
+        assertEquals(24 * HOUR, Rollups.parseInterval("1d"));
+
+        for (String invalid : new String[] {"", "m", "0m", "1w", "xm"}) {
+            try {
+                Rollups.parseInterval(invalid);
+                assertTrue("expected failure for " + invalid, false);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static JsonObject find(JsonArray points, String tag, String value, String aggregator) {
+        for (int i = 0; i < points.size(); i++) {
+            JsonObject point = points.getJsonObject(i);
+            if (value.equals(point.getJsonObject("tags").getString(tag))
+                    && aggregator.equals(point.getString("aggregator"))) {
+                return point;
+            }
+        }
+        throw new AssertionError("No " + aggregator + " point for " + tag + "=" + value);
+    }
+}
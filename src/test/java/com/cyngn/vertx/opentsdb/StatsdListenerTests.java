@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends statsd datagrams over localhost
+ */
+@RunWith(VertxUnitRunner.class)
+public class StatsdListenerTests {
+
+    private Vertx vertx;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void testReceive(TestContext context) {
+        Async async = context.async();
+        List<Metric> received = new ArrayList<>();
+        StatsdListener listener = new StatsdListener(vertx, new StatsdParser("svc", "host=a", 7, null),
+                (name, metric) -> {
+                    received.add(metric);
+                    if (received.size() == 2) {
+                        context.assertEquals("svc.api.time", received.get(0).getName());
+                        context.assertEquals("host=a type=t", received.get(1).getTags());
+                        async.complete();
+                    }
+                    return null;
+                }, 0);
+
+        listener.listen("127.0.0.1", 0, context.asyncAssertSuccess(v ->
+                vertx.createDatagramSocket().send("api.time:150|ms\napi.requests:1|c|#type:t", listener.getPort(),
+                        "127.0.0.1", context.asyncAssertSuccess())));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatsdParserTests {
+
+    private static final long TIMESTAMP = 1431000000000L;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Metric> metrics = new ArrayList<>();
+
+    private int parse(StatsdParser parser, String packet) {
+        return parser.parse(Buffer.buffer(packet), TIMESTAMP, (name, metric) -> {
+            names.add(name);
+            metrics.add(metric);
+            return null;
+        });
+    }
+
+    @Test
+    public void testMultiLinePacket() {
+        StatsdParser parser = new StatsdParser("svc", "host=a", 7, null);
+        int parsed = parse(parser, "api.time:150.23|ms\napi.requests:3|c|#type:t,region:west\r\nqueue.depth:-2|ms\n");
+
+        assertEquals(3, parsed);
+        assertEquals("api.time", names.get(0));
+        assertEquals("put svc.api.time 1431000000000 150.23 host=a\n", metrics.get(0).toPutString());
+        assertEquals("put svc.api.requests 1431000000000 3 host=a type=t region=west\n", metrics.get(1).toPutString());
+        assertEquals("put svc.queue.depth 1431000000000 -2 host=a\n", metrics.get(2).toPutString());
+    }
+
+    @Test
+    public void testSampleRate() {
+        StatsdParser parser = new StatsdParser(null, "host=a", 7, null);
+        parse(parser, "api.requests:1|c|@0.1\napi.time:20|ms|@0.5");
+
+        // counters are scaled back up, other types are sent as sampled
+        assertEquals("put api.requests 1431000000000 10 host=a\n", metrics.get(0).toPutString());
+        assertEquals("put api.time 1431000000000 20 host=a\n", metrics.get(1).toPutString());
+    }
+
+    @Test
+    public void testInvalidLines() {
+        StatsdParser parser = new StatsdParser(null, "", 1, null);
+        int parsed = parse(parser, String.join("\n", "no.tags:1|c", "bad.value:abc|c|#a:b", "no.type:1|#a:b",
+                "set:1|s|#a:b", "delta:+1|g|#a:b", "too.many:1|c|#a:b,c:d", "bad.rate:1|c|@2|#a:b", "nan:NaN|g|#a:b",
+                "good:1|c|#a:b"));
+
+        assertEquals(1, parsed);
+        assertEquals("good", names.get(0));
+        assertEquals(8, parser.getAndResetInvalid());
+        assertEquals(0, parser.getAndResetInvalid());
+    }
+
+    @Test
+    public void testEmptyType() {
+        StatsdParser parser = new StatsdParser(null, "host=a", 7, null);
+
+        // an empty type on the last line of a datagram used to read past the end of the packet
+        assertEquals(1, parse(parser, "foo:1|c\nbar:2|"));
+        assertEquals(0, parse(parser, "bar:2||#a:b"));
+        assertEquals(2, parser.getAndResetInvalid());
+    }
+
+    @Test
+    public void testInvalidCharacters() {
+        StatsdParser parser = new StatsdParser(null, "host=a", 7, null);
+
+        // a space would split the put line and corrupt everything batched after it
+        int parsed = parse(parser, String.join("\n", "a b:1|c", "a=b:1|c", "ok:1|c|#bad tag:b", "ok:1|c|#a:b@c",
+                "ok:1|c|#:b", "ok:1|c|#a:", "ok.name/x-y_z:1|c|#a:b"));
+
+        assertEquals(1, parsed);
+        assertEquals("ok.name/x-y_z", names.get(0));
+        assertEquals(6, parser.getAndResetInvalid());
+    }
+
+    @Test
+    public void testBlacklisted() {
+        MetricBlacklist blacklist = new MetricBlacklist(10, 60000);
+        blacklist.add("svc.rejected");
+        StatsdParser parser = new StatsdParser("svc", "host=a", 7, blacklist);
+
+        assertEquals(1, parse(parser, "rejected:1|c\naccepted:1|c"));
+        assertEquals("accepted", names.get(0));
+    }
+
+    @Test
+    public void testSinkRejected() {
+        StatsdParser parser = new StatsdParser(null, "host=a", 7, null);
+        int parsed = parser.parse(Buffer.buffer("full:1|c\nqueued:2|c\nbad:x|c"), TIMESTAMP,
+                (name, metric) -> name.equals("queued") ? null : "backlog full");
+
+        // rejected lines were valid, they just weren't queued
+        assertEquals(1, parsed);
+        assertEquals(1, parser.getAndResetRejected());
+        assertEquals(1, parser.getAndResetInvalid());
+        assertEquals(0, parser.getAndResetRejected());
+    }
+}
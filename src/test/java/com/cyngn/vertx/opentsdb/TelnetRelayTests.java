@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connects to the relay as a collector would over localhost
+ */
+@RunWith(VertxUnitRunner.class)
+public class TelnetRelayTests {
+
+    private Vertx vertx;
+    private TelnetRelay relay;
+    private List<Metric> received;
+    // why the sink discards metrics, null to queue them
+    private String rejection;
+
+    @Before
+    public void before(TestContext context) {
+        vertx = Vertx.vertx();
+        received = new ArrayList<>();
+        MetricSink sink = (name, metric) -> {
+            if (rejection == null) { received.add(metric); }
+            return rejection;
+        };
+        relay = new TelnetRelay(vertx, new PutLineParser(8, null), sink, 128);
+        relay.listen("127.0.0.1", 0, context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void testRelay(TestContext context) {
+        Async async = context.async();
+        vertx.createNetClient().connect(relay.getPort(), "127.0.0.1", context.asyncAssertSuccess(socket -> {
+            Buffer replies = Buffer.buffer();
+            socket.handler(data -> {
+                replies.appendBuffer(data);
+                String reply = replies.toString();
+                if (reply.endsWith(TelnetRelay.VERSION_REPLY)) {
+                    context.assertEquals("put: illegal argument: invalid timestamp\n" + TelnetRelay.VERSION_REPLY,
+                            reply);
+                    context.assertEquals(2, received.size());
+                    context.assertEquals("put sys.cpu.user 1356998400000 42 host=a\n", received.get(1).toPutString());
+                    async.complete();
+                }
+            });
+
+            // lines split across writes are put back together
+            socket.write("put sys.cpu.user 1356998400 41 host=a\nput sys.cpu.user 13");
+            vertx.setTimer(50, timerId -> socket.write("56998400 42 host=a\r\nput sys.cpu.user x 1 host=a\nversion\n"));
+        }));
+    }
+
+    @Test
+    public void testLineTooLong(TestContext context) {
+        Async async = context.async();
+        vertx.createNetClient().connect(relay.getPort(), "127.0.0.1", context.asyncAssertSuccess(socket -> {
+            socket.closeHandler(v -> async.complete());
+            StringBuilder line = new StringBuilder("put ");
+            while (line.length() <= 256) { line.append("sys.cpu.user."); }
+            socket.write(line.toString());
+        }));
+    }
+
+    @Test
+    public void testSinkRejected(TestContext context) {
+        rejection = "Rate limit exceeded, discarding metric";
+        Async async = context.async();
+        vertx.createNetClient().connect(relay.getPort(), "127.0.0.1", context.asyncAssertSuccess(socket -> {
+            Buffer replies = Buffer.buffer();
+            socket.handler(data -> {
+                replies.appendBuffer(data);
+                String reply = replies.toString();
+                if (reply.endsWith(TelnetRelay.VERSION_REPLY)) {
+                    // the sink's reason is passed on rather than reported as an illegal argument
+                    context.assertEquals("put: " + rejection + "\n" + TelnetRelay.VERSION_REPLY, reply);
+                    context.assertEquals(0, received.size());
+                    async.complete();
+                }
+            });
+
+            socket.write("put sys.cpu.user 1356998400 41 host=a\nversion\n");
+        }));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchSizerTests {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testGrowsToMax() {
+        BatchSizer sizer = new BatchSizer(1500, 4000, 50);
+        assertEquals(1500, sizer.getBatchSize());
+
+        long now = System.nanoTime();
+        sizer.onWriteComplete(now, now + MILLI);
+        assertEquals(3000, sizer.getBatchSize());
+        sizer.onWriteComplete(now, now + 2 * MILLI);
+        assertEquals(4000, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testSlowWriteHalvesOnce() {
+        BatchSizer sizer = new BatchSizer(1000, 64000, 50);
+        long now = System.nanoTime();
+        for (int i = 1; i <= 7; i++) { sizer.onWriteComplete(now, now + i * MILLI); }
+        assertEquals(8000, sizer.getBatchSize());
+
+        // two writes issued before the stall was seen only shrink the size once
+        long issued = System.nanoTime();
+        sizer.onWriteComplete(issued, issued + 100 * MILLI);
+        sizer.onWriteComplete(issued, issued + 200 * MILLI);
+        assertEquals(4000, sizer.getBatchSize());
+
+        sizer.onWriteQueueFull();
+        sizer.onWriteQueueFull();
+        sizer.onWriteQueueFull();
+        assertEquals(1000, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testQueuedWritesNotSlow() {
+        BatchSizer sizer = new BatchSizer(1000, 64000, 50);
+        long issued = System.nanoTime();
+
+        // writes handed over together complete one after another, each only took 10ms of the channel's time
+        for (int i = 1; i <= 10; i++) { sizer.onWriteComplete(issued, issued + i * 10 * MILLI); }
+        assertEquals(11000, sizer.getBatchSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new BatchSizer(2000, 1000, 50);
+    }
+}
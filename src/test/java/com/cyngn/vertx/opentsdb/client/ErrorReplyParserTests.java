@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ErrorReplyParserTests {
+
+    @Test
+    public void testUnknownMetric() {
+        String metric = ErrorReplyParser.getRejectedMetric(
+                "put: unknown metric: No such name for 'metrics': 'api.add_item.time'");
+        assertEquals("api.add_item.time", metric);
+    }
+
+    @Test
+    public void testInvalidMetric() {
+        String metric = ErrorReplyParser.getRejectedMetric(
+                "put: illegal argument: Invalid metric name (\"@@@@test@value\"): illegal character: @");
+        assertEquals("@@@@test@value", metric);
+    }
+
+    @Test
+    public void testNoMetric() {
+        String metric = ErrorReplyParser.getRejectedMetric(
+                "put: illegal argument: Invalid tag value (\"b@r\"): illegal character: @");
+        assertEquals(null, metric);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.client;
+
+import com.cyngn.vertx.opentsdb.EventBusMessage;
+import com.cyngn.vertx.opentsdb.OpenTsDbReporter;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Posts rollups to a stub of the OpenTsDb HTTP API on localhost
+ */
+@RunWith(VertxUnitRunner.class)
+public class RollupClientTests {
+
+    private Vertx vertx;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private static JsonArray points(int count) {
+        JsonArray points = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            points.add(new JsonObject().put("metric", "api.time").put("timestamp", 1431000000L + i * 60)
+                    .put("value", i).put("tags", new JsonObject().put("host", "a")).put("interval", "1m")
+                    .put("aggregator", "SUM"));
+        }
+        return points;
+    }
+
+    @Test
+    public void testSend(TestContext context) {
+        Async async = context.async();
+        List<JsonArray> received = new ArrayList<>();
+        HttpServer server = vertx.createHttpServer().requestHandler(request -> {
+            context.assertEquals(RollupClient.ROLLUP_PATH, request.path());
+            request.bodyHandler(body -> {
+                received.add(new JsonArray(body.toString()));
+                request.response().setStatusCode(204).end();
+
+                if (received.stream().mapToInt(JsonArray::size).sum() == 5) {
+                    // split into requests of at most the batch size
+                    context.assertEquals(3, received.size());
+                    received.forEach(batch -> context.assertTrue(batch.size() <= 2));
+                    async.complete();
+                }
+            });
+        });
+
+        server.listen(18091, "127.0.0.1", context.asyncAssertSuccess(listening ->
+                new RollupClient("127.0.0.1", 18091, vertx, 2, 5000).send(points(5))));
+    }
+
+    @Test
+    public void testFailure(TestContext context) {
+        Async async = context.async();
+        HttpServer server = vertx.createHttpServer().requestHandler(request ->
+                request.response().setStatusCode(400).end("{\"error\" : {\"message\" : \"invalid rollup\"}}"));
+
+        vertx.eventBus().<JsonObject>consumer(OpenTsDbReporter.ERROR_MESSAGE_ADDRESS, message -> {
+            context.assertEquals(EventBusMessage.ROLLUP_FAILURE.toString(), message.body().getString("error"));
+            context.assertEquals(3, message.body().getInteger("points"));
+            async.complete();
+        });
+
+        server.listen(18092, "127.0.0.1", context.asyncAssertSuccess(listening ->
+                new RollupClient("127.0.0.1", 18092, vertx, 10, 5000).send(points(3))));
+    }
+}
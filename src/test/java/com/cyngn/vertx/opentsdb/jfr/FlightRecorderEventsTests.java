@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.jfr;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderEventsTests {
+
+    @Test
+    public void testNotRecording() {
+        assertTrue(FlightRecorderEvents.isAvailable());
+        assertNull(FlightRecorderEvents.beginFlush());
+        assertNull(FlightRecorderEvents.beginDisconnect("localhost", 4242));
+        assertNull(FlightRecorderEvents.dropped(null, true));
+        assertNull(FlightRecorderEvents.beginIngest());
+
+        // calls on events that were never begun are no-ops
+        FlightRecorderEvents.drained(null, 10);
+        FlightRecorderEvents.commitFlush(null, 1, false);
+        FlightRecorderEvents.commitDrops(null, 0);
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        Path file = Files.createTempFile("opentsdb", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.cyngn.vertx.opentsdb.Flush");
+            recording.enable("com.cyngn.vertx.opentsdb.WriteStall");
+            recording.enable("com.cyngn.vertx.opentsdb.OverloadDrop");
+            recording.start();
+
+            List<ByteBuf> chunks = Arrays.asList(Unpooled.copiedBuffer("put a 1 1 host=a\n", StandardCharsets.UTF_8),
+                    Unpooled.copiedBuffer("put b 1 1 host=a\n", StandardCharsets.UTF_8));
+            Object flush = FlightRecorderEvents.beginFlush();
+            FlightRecorderEvents.drained(flush, 2);
+            FlightRecorderEvents.encoded(flush, chunks);
+            FlightRecorderEvents.written(flush);
+            FlightRecorderEvents.commitFlush(flush, 1, false);
+
+            FlightRecorderEvents.writeStall("localhost", 4242, "write_queue_full", 512);
+
+            Object drops = FlightRecorderEvents.dropped(null, true);
+            drops = FlightRecorderEvents.dropped(drops, false);
+            drops = FlightRecorderEvents.dropped(drops, false);
+            FlightRecorderEvents.commitDrops(drops, 100);
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        assertEquals(3, events.size());
+
+        RecordedEvent flush = find(events, "com.cyngn.vertx.opentsdb.Flush");
+        assertEquals(2, flush.getInt("points"));
+        assertEquals(2, flush.getInt("chunks"));
+        assertEquals(34, flush.getLong("bytes"));
+        assertEquals(1, flush.getInt("senders"));
+
+        RecordedEvent stall = find(events, "com.cyngn.vertx.opentsdb.WriteStall");
+        assertEquals("write_queue_full", stall.getString("reason"));
+        assertEquals(512, stall.getLong("bytes"));
+
+        RecordedEvent drops = find(events, "com.cyngn.vertx.opentsdb.OverloadDrop");
+        assertEquals(1, drops.getLong("rateLimited"));
+        assertEquals(2, drops.getLong("backlogFull"));
+        assertEquals(100, drops.getInt("backlogSize"));
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals(name)).findFirst().get();
+    }
+}
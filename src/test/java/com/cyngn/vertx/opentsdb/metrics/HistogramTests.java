@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import com.cyngn.vertx.opentsdb.Metric;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTests {
+
+    private static Map<String, Metric> report(Histogram histogram, double unit) {
+        Map<String, Metric> metrics = new HashMap<>();
+        histogram.report("test", "", 1431000000000L, unit,
+                new MetricWriter("", "foo=bar", 1, 8, (name, metric) -> {
+                    metrics.put(name, metric);
+                    return null;
+                }));
+        return metrics;
+    }
+
+    @Test
+    public void testBuckets() {
+        // every value lands in a bucket whose top is no more than 25% above it
+        for (long value = 0; value < 100000; value++) {
+            int index = Histogram.index(value);
+            assertTrue(Histogram.upperBound(index) >= value);
+            assertTrue(Histogram.upperBound(index) <= value * 1.25);
+            if (index > 0) { assertTrue(Histogram.upperBound(index - 1) < value); }
+        }
+        assertTrue(Histogram.upperBound(Histogram.index(Long.MAX_VALUE)) == Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testReport() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) { histogram.record(i * 1000); }
+
+        Map<String, Metric> metrics = report(histogram, 1000);
+        assertEquals(100, metrics.get("test.count").getRawValue());
+        assertEquals(50.5, metrics.get("test.mean").getValue(), 0.001);
+        assertEquals(100, metrics.get("test.max").getValue(), 0.001);
+        assertEquals(50, metrics.get("test.p50").getValue(), 50 * 0.25);
+        assertEquals(99, metrics.get("test.p99").getValue(), 99 * 0.25);
+        assertEquals("foo=bar", metrics.get("test.count").getTags());
+
+        // reset on report, an empty period only has a count
+        metrics = report(histogram, 1000);
+        assertEquals(0, metrics.get("test.count").getRawValue());
+        assertFalse(metrics.containsKey("test.mean"));
+    }
+
+    @Test
+    public void testMaxCapsPercentiles() {
+        Histogram histogram = new Histogram();
+        histogram.record(1001);
+        assertEquals(1001, report(histogram, 1).get("test.p99").getValue(), 0);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import com.cyngn.vertx.opentsdb.Metric;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JvmCollectorTests {
+
+    @Test
+    public void testCollect() {
+        Map<String, Metric> collected = new HashMap<>();
+        JvmCollector collector = new JvmCollector(new MetricWriter("svc", "host=test", 1, 8,
+                (name, metric) -> {
+                    collected.put(name + " " + metric.getTags(), metric);
+                    return null;
+                }));
+
+        collector.collect(1431000000000L);
+        Metric heap = collected.get("jvm.heap.used host=test");
+        assertEquals("svc.jvm.heap.used", heap.getName());
+        assertTrue(heap.getRawValue() > 0);
+        assertTrue(collected.get("jvm.threads.live host=test").getRawValue() > 0);
+        assertTrue(collected.get("jvm.classes.loaded host=test").getRawValue() > 0);
+        assertTrue(collected.containsKey("jvm.buffers.used host=test pool=direct"));
+        assertTrue(collected.keySet().stream().anyMatch(key -> key.startsWith("jvm.gc.count host=test gc=")));
+
+        // every sample reuses the same series strings
+        collected.clear();
+        System.gc();
+        collector.collect(1431000010000L);
+        assertSame(heap.getName(), collected.get("jvm.heap.used host=test").getName());
+        assertSame(heap.getTags(), collected.get("jvm.heap.used host=test").getTags());
+
+        // gc counts are the change since the last sample
+        long collections = collected.entrySet().stream().filter(entry -> entry.getKey().startsWith("jvm.gc.count"))
+                .mapToLong(entry -> entry.getValue().getRawValue()).sum();
+        assertTrue(collections >= 1 && collections < 10);
+    }
+
+    @Test
+    public void testTagValue() {
+        assertEquals("G1_Young_Generation", JvmCollector.tagValue("G1 Young Generation"));
+        assertEquals("PS_Eden_Space", JvmCollector.tagValue("PS Eden Space"));
+        assertEquals("CodeHeap_'non-nmethods'".replace('\'', '_'), JvmCollector.tagValue("CodeHeap 'non-nmethods'"));
+    }
+}
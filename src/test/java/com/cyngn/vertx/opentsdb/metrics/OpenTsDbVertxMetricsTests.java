@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.metrics;
+
+import com.cyngn.vertx.opentsdb.Metric;
+import com.cyngn.vertx.opentsdb.OpenTsDbReporter;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(VertxUnitRunner.class)
+public class OpenTsDbVertxMetricsTests {
+
+    private Vertx vertx;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx(new VertxOptions().setMetricsOptions(new MetricsOptions().setEnabled(true)));
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private static Map<String, Metric> report(OpenTsDbVertxMetrics metrics) {
+        Map<String, Metric> reported = new HashMap<>();
+        metrics.report(1431000000000L, new MetricWriter("", "host=test", 1, 8,
+                (name, metric) -> {
+                    reported.put(name + " " + metric.getTags(), metric);
+                    return null;
+                }));
+        return reported;
+    }
+
+    @Test
+    public void testEventBus(TestContext context) {
+        OpenTsDbVertxMetrics metrics = OpenTsDbVertxMetrics.get(vertx);
+        context.assertNotNull(metrics);
+
+        vertx.eventBus().consumer("test.address", message -> message.reply("pong"));
+        Async async = context.async();
+        vertx.eventBus().send("test.address", "ping", reply -> {
+            // the reply handler is still running, so only the ping has been handled
+            Map<String, Metric> reported = report(metrics);
+            context.assertEquals(1L, reported.get("vertx.eventbus.messages host=test type=handled").getRawValue());
+            context.assertEquals(2L, reported.get("vertx.eventbus.messages host=test type=sent").getRawValue());
+            context.assertEquals(0L, reported.get("vertx.eventbus.pending host=test").getRawValue());
+            context.assertTrue(reported.get("vertx.eventbus.handlers host=test").getRawValue() >= 1);
+
+            // counters start over each report
+            context.assertEquals(0L, report(metrics).get("vertx.eventbus.messages host=test type=sent").getRawValue());
+            async.complete();
+        });
+    }
+
+    @Test
+    public void testHttpServer(TestContext context) {
+        OpenTsDbVertxMetrics metrics = OpenTsDbVertxMetrics.get(vertx);
+        Async async = context.async();
+        vertx.createHttpServer().requestHandler(request -> request.response().setStatusCode(404).end())
+                .listen(18089, "localhost", listening -> {
+            context.assertTrue(listening.succeeded());
+            vertx.createHttpClient().getNow(18089, "localhost", "/", response -> response.endHandler(v -> {
+                Map<String, Metric> reported = report(metrics);
+                context.assertEquals(1L, reported.get("vertx.http.server.latency.count host=test port=18089")
+                        .getRawValue());
+                context.assertTrue(reported.containsKey("vertx.http.server.latency.p99 host=test port=18089"));
+                context.assertEquals(1L, reported.get("vertx.http.server.responses host=test port=18089 status=4xx")
+                        .getRawValue());
+                context.assertEquals(1L, reported.get("vertx.http.server.connections host=test port=18089")
+                        .getRawValue());
+                async.complete();
+            }));
+        });
+    }
+
+    @Test
+    public void testEventLoopLag(TestContext context) {
+        OpenTsDbVertxMetrics metrics = OpenTsDbVertxMetrics.get(vertx);
+        metrics.startLagProbes(10);
+
+        Async async = context.async();
+        vertx.setTimer(200, timerId -> {
+            Map<String, Metric> reported = report(metrics);
+            context.assertTrue(reported.get("vertx.eventloop.lag.count host=test").getRawValue() > 0);
+            context.assertTrue(reported.containsKey("vertx.eventloop.lag.max host=test"));
+            metrics.stopLagProbes();
+            async.complete();
+        });
+    }
+
+    @Test
+    public void testReportedThroughReporter(TestContext context) {
+        JsonObject config = new JsonObject().put("address", "test-vertx-metrics").put("flushIntervalMilli", 50)
+                .put("hosts", new JsonArray().add(new JsonObject().put("host", "localhost").put("port", 4242)))
+                .put("prefix", "svc").put("tags", new JsonObject().put("host", "test"))
+                .put("latestValues", new JsonObject()).put("vertxMetrics", new JsonObject());
+
+        Async async = context.async();
+        vertx.deployVerticle(OpenTsDbReporter.class.getName(), new DeploymentOptions().setConfig(config),
+                deployed -> {
+            context.assertTrue(deployed.succeeded());
+            vertx.setTimer(300, timerId -> vertx.eventBus().<JsonObject>send("test-vertx-metrics",
+                    new JsonObject().put("action", OpenTsDbReporter.QUERY_LATEST_COMMAND).put("name", "vertx.*"),
+                    reply -> {
+                context.assertTrue(reply.succeeded());
+                JsonArray series = reply.result().body().getJsonArray("series");
+                context.assertTrue(series.size() > 0);
+                context.assertTrue(series.getJsonObject(0).getString("name").startsWith("svc.vertx."));
+                async.complete();
+            }));
+        });
+    }
+}